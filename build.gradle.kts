@@ -18,4 +18,38 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+/**
+ * Benchmarks live in their own source set, src/jmh/java, so building and
+ * testing never need JMH.  ./gradlew jmh compiles and runs them, downloading
+ * JMH from Maven Central the first time; run a subset with
+ * ./gradlew jmh -PjmhIncludes=DiskBenchmark
+ */
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[jmh.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks"
+    group = "benchmark"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+
+    val results = layout.buildDirectory.file("results/jmh/results.json").get().asFile
+    doFirst {
+        results.parentFile.mkdirs()
+    }
+    args("-wi", "3", "-i", "5", "-f", "1", "-rf", "json", "-rff", results.path)
+    if (project.hasProperty("jmhIncludes")) {
+        args(project.property("jmhIncludes").toString())
+    }
+}
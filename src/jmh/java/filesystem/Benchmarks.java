@@ -0,0 +1,31 @@
+package filesystem;
+
+
+/**
+ * Helpers shared by the benchmarks
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Creates the disk named by a benchmark's <code>diskType</code> parameter
+     *
+     * @param diskType - "Disk", "MappedDisk" or "CachedDisk"
+     * @return A new, unformatted disk
+     * @throws IllegalArgumentException If the type is not known
+     */
+    static Disk newDisk(String diskType) {
+        switch (diskType) {
+            case "Disk":
+                return new Disk();
+            case "MappedDisk":
+                return new MappedDisk();
+            case "CachedDisk":
+                return new CachedDisk(new Disk());
+            default:
+                throw new IllegalArgumentException("Benchmarks::newDisk: unknown disk type " + diskType);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Raw <code>Disk</code> accesses: single inode and data block reads and
+ * writes, and vectored reads of a contiguous run of blocks.
+ */
+@State(Scope.Benchmark)
+public class DiskBenchmark {
+
+    @Param({"Disk", "MappedDisk", "CachedDisk"})
+    public String diskType;
+
+    private Disk disk;
+    private INode inode;
+    private byte[] block;
+    private int[] run;
+    private ByteBuffer runBuffer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        disk = Benchmarks.newDisk(diskType);
+        disk.format();
+
+        inode = new INode();
+        inode.setFileName("benchmark.txt");
+        inode.setSize(Disk.BLOCK_SIZE * 4);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, i);
+        }
+
+        block = new byte[Disk.BLOCK_SIZE];
+        run = new int[INode.NUM_BLOCK_POINTERS];
+        for (int i = 0; i < run.length; i++) {
+            run[i] = 1000 + i;
+        }
+        runBuffer = ByteBuffer.allocate(run.length * Disk.BLOCK_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        disk.close();
+    }
+
+    /**
+     * Walks the inode list and the data region so successive calls do not
+     * hit the same position
+     */
+    private int nextIndex(int limit) {
+        next = (next + 1) % limit;
+        return next;
+    }
+
+    @Benchmark
+    public INode readInode() throws IOException {
+        return disk.readInode(nextIndex(Disk.NUM_INODES));
+    }
+
+    @Benchmark
+    public void writeInode() throws IOException {
+        disk.writeInode(inode, nextIndex(Disk.NUM_INODES));
+    }
+
+    @Benchmark
+    public INodeTable readINodeTable() throws IOException {
+        return disk.readINodeTable();
+    }
+
+    @Benchmark
+    public byte[] readDataBlock() throws IOException {
+        return disk.readDataBlock(nextIndex(Disk.NUM_BLOCKS));
+    }
+
+    @Benchmark
+    public void writeDataBlock() throws IOException {
+        disk.writeDataBlock(block, nextIndex(Disk.NUM_BLOCKS));
+    }
+
+    @Benchmark
+    public ByteBuffer readDataBlocksRun() throws IOException {
+        runBuffer.clear();
+        disk.readDataBlocks(run, runBuffer);
+        return runBuffer;
+    }
+}
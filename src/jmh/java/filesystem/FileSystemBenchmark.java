@@ -0,0 +1,113 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+
+
+/**
+ * File-level operations on a file system that already holds
+ * <code>fileCount</code> files of <code>fileSize</code> bytes.
+ */
+@State(Scope.Benchmark)
+public class FileSystemBenchmark {
+
+    @Param({"Disk", "MappedDisk", "CachedDisk"})
+    public String diskType;
+
+    @Param({"10", "100", "500"})
+    public int fileCount;
+
+    @Param({"64", "4096", "16384"})
+    public int fileSize;
+
+    private FileSystem fs;
+    private String contents;
+    private int next;
+    private int appended;
+    private long appendLimit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fs = new FileSystem(Benchmarks.newDisk(diskType));
+        contents = "x".repeat(fileSize);
+
+        for (int i = 0; i < fileCount; i++) {
+            int fd = fs.create("file" + i);
+            fs.write(fd, contents);
+            fs.close(fd);
+        }
+
+        // Appends grow the file through its indirect blocks up to the maximum file size, or
+        // as far as the disk allows while leaving room for the scratch file and indirect blocks
+        int scratchBlocks = (fileSize + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        int spareBlocks = fs.freeList.getFreeBlockCount() - scratchBlocks - INode.indirectBlocksFor(INode.MAX_FILE_BLOCKS);
+        appendLimit = (long) Math.min(INode.MAX_FILE_BLOCKS, spareBlocks) * Disk.BLOCK_SIZE;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.sync();
+        fs.diskDevice.close();
+    }
+
+    private String nextFile() {
+        next = (next + 1) % fileCount;
+        return "file" + next;
+    }
+
+    @Benchmark
+    public void createWriteCloseDelete() throws IOException {
+        int fd = fs.create("scratch");
+        fs.write(fd, contents);
+        fs.close(fd);
+        fs.delete("scratch");
+    }
+
+    @Benchmark
+    public int openClose() throws IOException {
+        int fd = fs.open(nextFile());
+        fs.close(fd);
+        return fd;
+    }
+
+    @Benchmark
+    public String openReadClose() throws IOException {
+        int fd = fs.open(nextFile());
+        String data = fs.read(fd);
+        fs.close(fd);
+        return data;
+    }
+
+    @Benchmark
+    public void openRewriteClose() throws IOException {
+        int fd = fs.open(nextFile());
+        fs.write(fd, contents);
+        fs.close(fd);
+    }
+
+    @Benchmark
+    public void openAppendClose(Blackhole blackhole) throws IOException {
+        int fd = fs.open("scratch-append");
+        if (fd < 0) {
+            fd = fs.create("scratch-append");
+        }
+
+        // Start over before the file reaches appendLimit
+        if (++appended == appendLimit) {
+            fs.write(fd, "");
+            appended = 1;
+        }
+        fs.append(fd, "y");
+
+        fs.close(fd);
+        blackhole.consume(fd);
+    }
+}
@@ -0,0 +1,90 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Allocation from a <code>FreeBlockList</code> at various fill levels.
+ * Each benchmark allocates and then frees the same blocks, so the fill
+ * level stays where the setup put it.
+ */
+@State(Scope.Benchmark)
+public class FreeBlockListBenchmark {
+
+    /**
+     * Percentage of blocks in use, scattered at random
+     */
+    @Param({"0", "50", "90", "99"})
+    public int fillPercent;
+
+    @Param({"1", "8", "32"})
+    public int blocksPerFile;
+
+    private FreeBlockList freeList;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        freeList = new FreeBlockList();
+
+        Random random = new Random(42);
+        int toFill = (int) ((long) Disk.NUM_BLOCKS * fillPercent / 100);
+        while (Disk.NUM_BLOCKS - freeList.getFreeBlockCount() < toFill) {
+            freeList.allocateBlock(random.nextInt(Disk.NUM_BLOCKS));
+        }
+    }
+
+    @Benchmark
+    public int[] allocateNextFit() {
+        int[] blocks = freeList.allocate(blocksPerFile);
+        freeList.free(blocks);
+        return blocks;
+    }
+
+    @Benchmark
+    public int[] allocateContiguous() {
+        int[] blocks = freeList.allocateContiguous(blocksPerFile);
+        freeList.free(blocks);
+        return blocks;
+    }
+
+    /**
+     * The allocation group of one benchmark thread, a different one for
+     * each thread as for files whose inodes are in different groups
+     */
+    @State(Scope.Thread)
+    public static class AllocationGroup {
+        private static final AtomicInteger nextGroup = new AtomicInteger();
+
+        public int group;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            group = nextGroup.getAndIncrement() % FreeBlockList.NUM_GROUPS;
+        }
+    }
+
+    /**
+     * Allocation near a group, which locks only that group.  Run with
+     * several threads (-t) and compare with allocateContiguous, which locks
+     * the whole list.
+     */
+    @Benchmark
+    public int[] allocateInGroup(AllocationGroup allocationGroup) {
+        int[] blocks = freeList.allocateContiguous(blocksPerFile, allocationGroup.group);
+        freeList.free(blocks);
+        return blocks;
+    }
+
+    @Benchmark
+    public byte[] toDiskFormat() {
+        return freeList.getFreeBlockList();
+    }
+}
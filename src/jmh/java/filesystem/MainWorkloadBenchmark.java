@@ -0,0 +1,83 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The workload <code>Main</code> runs: format, create and write 100 files
+ * of growing size, delete every other file, then read back the rest.
+ * <code>createDeleteReadBatched</code> does the creates and the deletes
+ * as two batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MainWorkloadBenchmark {
+    private static final int NUM_LINES = 100;
+    private static final String TEST_DATA = "This is some text ";
+
+    @Param({"Disk", "MappedDisk", "CachedDisk"})
+    public String diskType;
+
+    @Benchmark
+    public void createDeleteRead(Blackhole blackhole) throws IOException {
+        FileSystem fs = new FileSystem(Benchmarks.newDisk(diskType));
+
+        String message = "";
+        for (int i = 0; i < NUM_LINES; i++) {
+            message = message.concat(TEST_DATA + i + ".  ");
+            int fd = fs.create("file" + i + ".txt");
+            fs.write(fd, message);
+            fs.close(fd);
+        }
+
+        for (int i = 0; i < NUM_LINES; i += 2) {
+            fs.delete("file" + i + ".txt");
+        }
+
+        for (int i = 1; i < NUM_LINES; i += 2) {
+            int fd = fs.open("file" + i + ".txt");
+            blackhole.consume(fs.read(fd));
+            fs.close(fd);
+        }
+
+        fs.diskDevice.close();
+    }
+
+    @Benchmark
+    public void createDeleteReadBatched(Blackhole blackhole) throws IOException {
+        FileSystem fs = new FileSystem(Benchmarks.newDisk(diskType));
+
+        Batch creates = fs.batch();
+        String message = "";
+        for (int i = 0; i < NUM_LINES; i++) {
+            message = message.concat(TEST_DATA + i + ".  ");
+            creates.create("file" + i + ".txt").write("file" + i + ".txt", message);
+        }
+        creates.commit();
+
+        Batch deletes = fs.batch();
+        for (int i = 0; i < NUM_LINES; i += 2) {
+            deletes.delete("file" + i + ".txt");
+        }
+        deletes.commit();
+
+        for (int i = 1; i < NUM_LINES; i += 2) {
+            int fd = fs.open("file" + i + ".txt");
+            blackhole.consume(fs.read(fd));
+            fs.close(fd);
+        }
+
+        fs.diskDevice.close();
+    }
+}
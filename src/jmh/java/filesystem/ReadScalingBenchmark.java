@@ -0,0 +1,84 @@
+package filesystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reads every one of <code>FILE_COUNT</code> open files, split across
+ * <code>threads</code> threads so each thread reads its own files.  The
+ * total work is the same for every thread count, so the time falls as
+ * reads of different files run in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadScalingBenchmark {
+    private static final int FILE_COUNT = 64;
+
+    @Param({"Disk", "MappedDisk", "CachedDisk"})
+    public String diskType;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private FileSystem fs;
+    private ExecutorService pool;
+    private int[] descriptors;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fs = new FileSystem(Benchmarks.newDisk(diskType));
+        pool = Executors.newFixedThreadPool(threads);
+
+        descriptors = new int[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            descriptors[i] = fs.create("file" + i);
+            fs.write(descriptors[i], ("file " + i + " ").repeat(20 + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        fs.unmount();
+    }
+
+    @Benchmark
+    public long readAll() throws InterruptedException, ExecutionException {
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(pool.submit(() -> {
+                long length = 0;
+                for (int i = thread; i < FILE_COUNT; i += threads) {
+                    length += fs.read(descriptors[i]).length();
+                }
+                return length;
+            }));
+        }
+
+        long length = 0;
+        for (Future<Long> result : results) {
+            length += result.get();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,114 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A list of create, write and delete operations applied to a file system
+ * together by <code>commit()</code>.  Operations name files rather than
+ * descriptors, so no file needs to be opened or closed:
+ *
+ * <pre>
+ *     fileSystem.batch().create("a").write("a", "hello").delete("b").commit();
+ * </pre>
+ *
+ * Nothing reaches the file system until the batch is committed.  The
+ * operations are then applied in order, as a single file system operation:
+ * the blocks of every file written are allocated at once, each changed
+ * inode and the free block list are written once, and the data is written
+ * in block order.
+ */
+public class Batch {
+
+    enum Kind {
+        CREATE, WRITE, DELETE
+    }
+
+    /**
+     * One recorded operation
+     */
+    static final class Op {
+        final Kind kind;
+        final String fileName;
+        final byte[] data;
+
+        Op(Kind kind, String fileName, byte[] data) {
+            this.kind = kind;
+            this.fileName = fileName;
+            this.data = data;
+        }
+    }
+
+    private final FileSystem fileSystem;
+    private final List<Op> ops;
+
+    Batch(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        this.ops = new ArrayList<>();
+    }
+
+    /**
+     * Adds the creation of an empty file
+     *
+     * @param fileName - name of the file to create
+     * @return This batch
+     */
+    public Batch create(String fileName) {
+        ops.add(new Op(Kind.CREATE, fileName, new byte[0]));
+        return this;
+    }
+
+    /**
+     * Adds a write replacing the contents of a file, which must exist or
+     * be created earlier in the batch
+     *
+     * @param fileName - name of the file
+     * @param data - new contents of the file
+     * @return This batch
+     */
+    public Batch write(String fileName, String data) {
+        return write(fileName, data.getBytes());
+    }
+
+    /**
+     * Adds a write replacing the contents of a file, which must exist or
+     * be created earlier in the batch
+     *
+     * @param fileName - name of the file
+     * @param data - new contents of the file
+     * @return This batch
+     */
+    public Batch write(String fileName, byte[] data) {
+        ops.add(new Op(Kind.WRITE, fileName, data.clone()));
+        return this;
+    }
+
+    /**
+     * Adds the removal of a file.  Removing a file that does not exist does
+     * nothing, as with <code>FileSystem.delete</code>.
+     *
+     * @param fileName - name of the file to remove
+     * @return This batch
+     */
+    public Batch delete(String fileName) {
+        ops.add(new Op(Kind.DELETE, fileName, null));
+        return this;
+    }
+
+    /**
+     * Applies the operations to the file system and empties the batch.
+     * The whole batch is checked before anything changes: if a file would
+     * be created twice, written without existing, or if there are not
+     * enough free inodes or blocks, nothing is applied.  Like
+     * <code>close</code>, a commit syncs the file system;
+     * <code>FileSystem.force()</code> makes it durable.
+     *
+     * @throws IOException If the batch cannot be applied or the disk cannot be written
+     */
+    public void commit() throws IOException {
+        fileSystem.commitBatch(ops);
+        ops.clear();
+    }
+}
@@ -0,0 +1,99 @@
+package filesystem;
+
+import java.io.IOException;
+
+
+/**
+ * Maps the block indexes of a file to disk blocks through the file's
+ * inode.  How the inode's block pointers are read depends on the inode
+ * format the disk was formatted with.
+ *
+ * Callers hold the lock of the inode being mapped.
+ */
+interface BlockMap {
+
+    /**
+     * Returns the disk blocks holding blocks <code>first .. first + count - 1</code>
+     * of the file
+     *
+     * @param inode - the file's inode
+     * @param first - index of the first block in the file
+     * @param count - number of blocks
+     * @return The disk block of each file block, -1 where none is assigned
+     * @throws IOException If mapping metadata cannot be read
+     */
+    int[] lookup(INode inode, int first, int count) throws IOException;
+
+    /**
+     * Assigns <code>blocks</code> to the file blocks starting at
+     * <code>first</code>, which is the number of blocks the file holds.
+     * Metadata blocks the file needs for its new length are taken from
+     * <code>metadataBlocks</code>.
+     *
+     * @param inode - the file's inode, updated in place
+     * @param first - index of the first block in the file
+     * @param blocks - disk blocks to assign
+     * @param metadataBlocks - free disk blocks for new metadata blocks
+     * @throws IOException If the blocks cannot be described by the inode, in
+     *                     which case the inode is left unchanged, or if mapping
+     *                     metadata cannot be read or written
+     */
+    void assign(INode inode, int first, int[] blocks, int[] metadataBlocks) throws IOException;
+
+    /**
+     * Returns whether <code>assign</code> would accept <code>blocks</code>
+     * for the file blocks starting at <code>first</code>, without changing
+     * anything
+     *
+     * @param inode - the file's inode
+     * @param first - index of the first block in the file
+     * @param blocks - disk blocks to assign
+     * @return true if the inode can describe the blocks
+     */
+    boolean canAssign(INode inode, int first, int[] blocks);
+
+    /**
+     * Returns every block held by the file, data and metadata blocks
+     * alike, without changing the inode
+     *
+     * @param inode - the file's inode
+     * @return The disk blocks held by the file
+     * @throws IOException If mapping metadata cannot be read
+     */
+    int[] heldBlocks(INode inode) throws IOException;
+
+    /**
+     * Clears the file's block pointers and returns every block it held,
+     * data and metadata blocks alike
+     *
+     * @param inode - the file's inode, updated in place
+     * @return The disk blocks that were held by the file
+     * @throws IOException If mapping metadata cannot be read
+     */
+    int[] release(INode inode) throws IOException;
+
+    /**
+     * Returns the disk blocks named in the inode itself, without reading
+     * any other block
+     *
+     * @param inode - the file's inode
+     * @return The disk blocks the inode points at
+     */
+    int[] inodeBlocks(INode inode);
+
+    /**
+     * Returns the number of metadata blocks a file of <code>numBlocks</code>
+     * data blocks needs besides its inode
+     *
+     * @param numBlocks - number of data blocks in the file
+     * @return Number of metadata blocks
+     */
+    int metadataBlocksFor(int numBlocks);
+
+    /**
+     * Returns the largest number of data blocks a file can hold
+     *
+     * @return Maximum file size in blocks
+     */
+    int maxFileBlocks();
+}
@@ -0,0 +1,507 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A write-back cache in front of another <code>Disk</code>.  Data blocks,
+ * inodes and the free block list are kept in memory; data blocks and inodes
+ * are held in bounded LRU maps.  Writes only mark the cached copy dirty, and
+ * dirty entries reach the underlying disk when they are evicted or when the
+ * cache is flushed.  Every method synchronizes on the cache, so it may be
+ * shared between threads.
+ */
+public class CachedDisk extends Disk {
+  public static final int DEFAULT_BLOCK_CAPACITY = 1024;
+  public static final int DEFAULT_INODE_CAPACITY = Disk.NUM_INODES;
+
+  private final Disk disk;
+  private final int blockCapacity;
+  private final int inodeCapacity;
+
+  /**
+   * Access-ordered maps, least recently used entry first
+   */
+  private final LinkedHashMap<Integer, CacheEntry<byte[]>> blockCache;
+  private final LinkedHashMap<Integer, CacheEntry<INode>> inodeCache;
+  private CacheEntry<byte[]> freeListEntry;
+
+  private long hits;
+  private long misses;
+
+  public CachedDisk(Disk disk) {
+    this(disk, DEFAULT_BLOCK_CAPACITY, DEFAULT_INODE_CAPACITY);
+  }
+
+  /**
+   * @param disk The disk being cached
+   * @param blockCapacity Maximum number of data blocks held in memory
+   * @param inodeCapacity Maximum number of inodes held in memory
+   * @throws IllegalArgumentException If either capacity is less than one
+   */
+  public CachedDisk(Disk disk, int blockCapacity, int inodeCapacity) throws IllegalArgumentException {
+    if (blockCapacity < 1 || inodeCapacity < 1) {
+      throw new IllegalArgumentException("CachedDisk:  " +
+                    "capacities must be at least 1, got " +
+                    blockCapacity + " blocks and " + inodeCapacity + " inodes");
+    }
+    this.disk = disk;
+    this.blockCapacity = blockCapacity;
+    this.inodeCapacity = inodeCapacity;
+    this.blockCache = new LinkedHashMap<>(16, 0.75f, true);
+    this.inodeCache = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /***
+   * Initialize a new disk, discarding everything cached
+   *
+   * @param inodeFormat How file blocks are recorded in inodes
+   * @param features Feature flags
+   * @param layoutVersion Layout version
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void format(int inodeFormat, int features, int layoutVersion) throws IOException {
+    blockCache.clear();
+    inodeCache.clear();
+    freeListEntry = null;
+    disk.format(inodeFormat, features, layoutVersion);
+  }
+
+  @Override
+  public synchronized int getLayoutVersion() {
+    return disk.getLayoutVersion();
+  }
+
+  @Override
+  public synchronized int getInodeFormat() {
+    return disk.getInodeFormat();
+  }
+
+  @Override
+  public synchronized int getFeatures() {
+    return disk.getFeatures();
+  }
+
+  /***
+   * Reads from the journal region of the underlying disk; the journal is
+   * not cached
+   *
+   * @param dst Buffer to fill
+   * @param position Byte offset within the journal region
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void readJournal(ByteBuffer dst, long position) throws IOException {
+    disk.readJournal(dst, position);
+  }
+
+  /***
+   * Writes to the journal region of the underlying disk; the journal is
+   * not cached
+   *
+   * @param src Buffer to write
+   * @param position Byte offset within the journal region
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void writeJournal(ByteBuffer src, long position) throws IOException {
+    disk.writeJournal(src, position);
+  }
+
+  /***
+   * Writes every dirty entry back and forces the underlying disk
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void force() throws IOException {
+    flush();
+    disk.force();
+  }
+
+  /***
+   * Open an existing disk, discarding everything cached
+   *
+   * @throws IOException If the disk cannot be mounted
+   */
+  @Override
+  public synchronized void mount() throws IOException {
+    blockCache.clear();
+    inodeCache.clear();
+    freeListEntry = null;
+    disk.mount();
+  }
+
+  /***
+   * Retrieve the free block list
+   *
+   * @return Returns an array of bytes representing the free block list
+   * @throws IOException If the list is not cached and cannot be read
+   */
+  @Override
+  public synchronized byte[] readFreeBlockList() throws IOException {
+    if (freeListEntry == null) {
+      misses++;
+      freeListEntry = new CacheEntry<>(disk.readFreeBlockList(), false);
+    } else {
+      hits++;
+    }
+
+    return freeListEntry.value.clone();
+  }
+
+  /***
+   * Caches an updated free space list
+   *
+   * @param freeBlockList Array of bytes representing an updated free
+   *                      byte list
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+    if (freeBlockList.length != BYTES_IN_FREE_SPACE_LIST) {
+      throw new IllegalArgumentException("CachedDisk::writeFreeBlockList:  " +
+                                       "is "  +  freeBlockList.length +
+                                       "bytes long  instead of "  +
+                                       BYTES_IN_FREE_SPACE_LIST +
+                                       " bytes long");
+    }
+
+    freeListEntry = new CacheEntry<>(freeBlockList.clone(), true);
+  }
+
+  /***
+   * Caches an <code>INode</code> for the given position
+   *
+   * @param inode The Inode to be written to disk
+   * @param whichInode  The position to which the inode is to be written
+   * @throws IOException If an evicted inode cannot be written back
+   */
+  @Override
+  public synchronized void writeInode(INode inode, int whichInode) throws IOException {
+    inodeCache.put(whichInode, new CacheEntry<>(new INode(inode), true));
+    evictInodes();
+  }
+
+  /***
+   * Read an <code>INode</code>, from the cache when it is held there
+   *
+   * @param whichInode The <code>INode</code> position in the file system to be read
+   * @return An instance of INode read from the disk.
+   * @throws IOException If the inode is not cached and cannot be read
+   */
+  @Override
+  public synchronized INode readInode(int whichInode) throws IOException {
+    CacheEntry<INode> entry = inodeCache.get(whichInode);
+
+    if (entry == null) {
+      misses++;
+      entry = new CacheEntry<>(disk.readInode(whichInode), false);
+      inodeCache.put(whichInode, entry);
+      evictInodes();
+    } else {
+      hits++;
+    }
+
+    return new INode(entry.value);
+  }
+
+  /***
+   * Reads the whole inode list from the underlying disk in one read, with
+   * the cached inodes, which may be newer, taking the place of their
+   * on-disk copies
+   *
+   * @return A table holding every inode
+   * @throws IOException If the inode list cannot be read
+   */
+  @Override
+  public synchronized INodeTable readINodeTable() throws IOException {
+    INodeTable table = disk.readINodeTable();
+
+    for (Map.Entry<Integer, CacheEntry<INode>> entry : inodeCache.entrySet()) {
+      table.setINode(entry.getKey(), entry.getValue().value);
+    }
+
+    return table;
+  }
+
+  /***
+   * Reads a block of data, from the cache when it is held there
+   *
+   * @param whichBlock The position of the data block to be read
+   * @return A block of data at position <code>whichBlock</code>
+   * @throws IOException If the block is not cached and cannot be read
+   */
+  @Override
+  public synchronized byte[] readDataBlock(int whichBlock) throws IOException {
+    return cachedBlock(whichBlock).clone();
+  }
+
+  /***
+   * Caches a block of data for the given position
+   *
+   * @param blockData Array of bytes to be written to <code>whichBlock</code>
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an evicted block cannot be written back
+   * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+   *                                  to the length of a data block size
+   */
+  @Override
+  public synchronized void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    if (blockData.length != BLOCK_SIZE) {
+       throw new IllegalArgumentException("CachedDisk::writeDataBlock:  "  +
+                     "storing block of size " + blockData.length  +
+                     "when it should be of size "  + BLOCK_SIZE);
+    }
+
+    putBlock(whichBlock, blockData.clone(), true);
+  }
+
+  /***
+   * Reads the data blocks listed in <code>blocks</code>, in order, into
+   * <code>dst</code>.  Blocks that are not cached are fetched from the
+   * underlying disk in one vectored read.
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void readDataBlocks(int[] blocks, ByteBuffer dst) throws IOException {
+    int count = Math.min(blocks.length, (dst.remaining() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    byte[][] data = new byte[count][];
+    List<Integer> missing = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+      CacheEntry<byte[]> entry = blockCache.get(blocks[i]);
+      if (entry == null) {
+        misses++;
+        missing.add(i);
+      } else {
+        hits++;
+        data[i] = entry.value;
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      int[] missingBlocks = new int[missing.size()];
+      for (int i = 0; i < missingBlocks.length; i++) {
+        missingBlocks[i] = blocks[missing.get(i)];
+      }
+
+      ByteBuffer fetched = ByteBuffer.allocate(missingBlocks.length * BLOCK_SIZE);
+      disk.readDataBlocks(missingBlocks, fetched);
+
+      for (int i = 0; i < missingBlocks.length; i++) {
+        byte[] block = new byte[BLOCK_SIZE];
+        System.arraycopy(fetched.array(), i * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+        data[missing.get(i)] = block;
+        putBlock(missingBlocks[i], block, false);
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      dst.put(data[i], 0, Math.min(BLOCK_SIZE, dst.remaining()));
+    }
+  }
+
+  /***
+   * Caches the contents of <code>src</code> for the data blocks listed in
+   * <code>blocks</code>, in order.  If <code>src</code> ends part way
+   * through the last block, the rest of that block is left unchanged.
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  @Override
+  public synchronized void writeDataBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    if (src.remaining() > (long)blocks.length * BLOCK_SIZE) {
+      throw new IllegalArgumentException("CachedDisk::writeDataBlocks:  " +
+                    "storing " + src.remaining() + " bytes in " +
+                    blocks.length + " blocks of size " + BLOCK_SIZE);
+    }
+
+    for (int i = 0; i < blocks.length && src.hasRemaining(); i++) {
+      byte[] block = (src.remaining() >= BLOCK_SIZE) ? new byte[BLOCK_SIZE] : cachedBlock(blocks[i]).clone();
+      src.get(block, 0, Math.min(BLOCK_SIZE, src.remaining()));
+      putBlock(blocks[i], block, true);
+    }
+  }
+
+  /***
+   * Reads data blocks like <code>readDataBlocks</code>.  The blocks are
+   * served through the cache on the calling thread, so the cached
+   * and uncached views of a block never differ.
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @return A completed future, failed if the blocks could not be read
+   */
+  @Override
+  public CompletableFuture<Void> readDataBlocksAsync(int[] blocks, ByteBuffer dst) {
+    try {
+      readDataBlocks(blocks, dst);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /***
+   * Writes data blocks like <code>writeDataBlocks</code>.  The blocks are
+   * served through the cache on the calling thread, so the cached
+   * and uncached views of a block never differ.
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @return A completed future, failed if the blocks could not be written
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  @Override
+  public CompletableFuture<Void> writeDataBlocksAsync(int[] blocks, ByteBuffer src) throws IllegalArgumentException {
+    try {
+      writeDataBlocks(blocks, src);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /***
+   * Writes every dirty block, inode and the free block list back to the
+   * underlying disk.  Dirty blocks are written in block order so adjacent
+   * blocks go out in a single write.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    List<Map.Entry<Integer, CacheEntry<byte[]>>> dirtyBlocks = new ArrayList<>();
+    for (Map.Entry<Integer, CacheEntry<byte[]>> e : blockCache.entrySet()) {
+      if (e.getValue().dirty) {
+        dirtyBlocks.add(e);
+      }
+    }
+
+    if (!dirtyBlocks.isEmpty()) {
+      dirtyBlocks.sort(Map.Entry.comparingByKey());
+
+      int[] blocks = new int[dirtyBlocks.size()];
+      ByteBuffer data = ByteBuffer.allocate(blocks.length * BLOCK_SIZE);
+      for (int i = 0; i < blocks.length; i++) {
+        blocks[i] = dirtyBlocks.get(i).getKey();
+        CacheEntry<byte[]> entry = dirtyBlocks.get(i).getValue();
+        data.put(entry.value);
+        entry.dirty = false;
+      }
+      data.flip();
+      disk.writeDataBlocks(blocks, data);
+    }
+
+    for (Map.Entry<Integer, CacheEntry<INode>> e : inodeCache.entrySet()) {
+      if (e.getValue().dirty) {
+        disk.writeInode(e.getValue().value, e.getKey());
+        e.getValue().dirty = false;
+      }
+    }
+
+    if (freeListEntry != null && freeListEntry.dirty) {
+      disk.writeFreeBlockList(freeListEntry.value);
+      freeListEntry.dirty = false;
+    }
+
+    disk.flush();
+  }
+
+  /***
+   * Flushes the cache and closes the underlying disk
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    disk.close();
+  }
+
+  /**
+   * @return Number of reads served from the cache
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of reads that had to go to the underlying disk
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of data blocks currently cached
+   */
+  public synchronized int getCachedBlockCount() {
+    return blockCache.size();
+  }
+
+  private byte[] cachedBlock(int whichBlock) throws IOException {
+    CacheEntry<byte[]> entry = blockCache.get(whichBlock);
+
+    if (entry == null) {
+      misses++;
+      byte[] block = disk.readDataBlock(whichBlock);
+      putBlock(whichBlock, block, false);
+      return block;
+    }
+
+    hits++;
+    return entry.value;
+  }
+
+  private void putBlock(int whichBlock, byte[] block, boolean dirty) throws IOException {
+    blockCache.put(whichBlock, new CacheEntry<>(block, dirty));
+
+    Iterator<Map.Entry<Integer, CacheEntry<byte[]>>> eldest = blockCache.entrySet().iterator();
+    while (blockCache.size() > blockCapacity) {
+      Map.Entry<Integer, CacheEntry<byte[]>> e = eldest.next();
+      if (e.getValue().dirty) {
+        disk.writeDataBlock(e.getValue().value, e.getKey());
+      }
+      eldest.remove();
+    }
+  }
+
+  private void evictInodes() throws IOException {
+    Iterator<Map.Entry<Integer, CacheEntry<INode>>> eldest = inodeCache.entrySet().iterator();
+    while (inodeCache.size() > inodeCapacity) {
+      Map.Entry<Integer, CacheEntry<INode>> e = eldest.next();
+      if (e.getValue().dirty) {
+        disk.writeInode(e.getValue().value, e.getKey());
+      }
+      eldest.remove();
+    }
+  }
+
+  private static class CacheEntry<T> {
+    private final T value;
+    private boolean dirty;
+
+    private CacheEntry(T value, boolean dirty) {
+      this.value = value;
+      this.dirty = dirty;
+    }
+  }
+}
@@ -1,7 +1,18 @@
 package filesystem;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 
 public class Disk {
@@ -11,59 +22,274 @@ public class Disk {
   public static final int BLOCK_SIZE = 512;
   public static final int BYTES_IN_FREE_SPACE_LIST = NUM_BLOCKS/8;
 
+  /**
+   * Allocation groups.  Group <code>g</code> is data blocks
+   * <code>g * BLOCKS_PER_GROUP ..</code>, their slice of the free block list
+   * (bytes <code>g * BLOCKS_PER_GROUP / 8 ..</code>) and inodes
+   * <code>g * INODES_PER_GROUP ..</code>.  A file's data is allocated in the
+   * group of its inode where there is room.  The groups divide the regions
+   * of every layout version as they are, so they need no format change.
+   */
+  public static final int BLOCKS_PER_GROUP = 512;
+  public static final int NUM_GROUPS = NUM_BLOCKS / BLOCKS_PER_GROUP;
+  public static final int INODES_PER_GROUP = NUM_INODES / NUM_GROUPS;
+
 
+  /**
+   * Size of an inode slot in layout version 1.  The field sizes are in
+   * bits, so a slot is far larger than the inode it holds.
+   */
   public static final int INODE_SIZE = INode.FILE_NAME_SIZE +
                                        INode.SIZE_FIELD_SIZE +
                                        (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE);
 
-  private static String RAW_DISK_MODE = "rw";
+  /**
+   * Layout version 2 packs inodes back to back in slots of exactly
+   * INode.ENCODED_SIZE bytes.  An inode is larger than a third of a block,
+   * so slots kept inside blocks could hold only two inodes per block, the
+   * same as 256-byte slots; packed, the list takes 392 blocks rather than
+   * 512 and some inodes cross a block boundary.  The list is a whole
+   * number of blocks, so the data blocks after it stay block aligned.
+   */
+  public static final int COMPACT_INODE_SIZE = INode.ENCODED_SIZE;
+
+  /**
+   * Number of bytes of an inode slot holding the inode's fields
+   */
+  protected static final int INODE_FIELDS_SIZE = INode.ENCODED_SIZE;
+
+  /**
+   * Per-thread buffer an inode is encoded into before it is written.  The
+   * buffer is direct, so the channel writes it without copying it first.
+   */
+  private static final ThreadLocal<ByteBuffer> INODE_BUFFER =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INODE_FIELDS_SIZE));
+
+  /**
+   * The superblock identifies a formatted disk and records the geometry it
+   * was formatted with, so an existing disk can be checked before mounting
+   */
+  public static final int SUPERBLOCK_SIZE = BLOCK_SIZE;
+  public static final int SUPERBLOCK_MAGIC = 0x4F534653;
+
+  /**
+   * Layout versions, recorded in the superblock.  They differ only in the
+   * size of an inode slot, which moves the data blocks and the journal.
+   * New disks are formatted with LAYOUT_VERSION.
+   */
+  public static final int LAYOUT_VERSION_1 = 1;
+  public static final int LAYOUT_VERSION_2 = 2;
+  public static final int LAYOUT_VERSION = LAYOUT_VERSION_2;
+
+  /**
+   * Inode formats, recorded in the superblock: block pointers with single
+   * and double indirect blocks, or (start, length) extents
+   */
+  public static final int INODE_FORMAT_POINTERS = 0;
+  public static final int INODE_FORMAT_EXTENTS = 1;
+
+  /**
+   * Optional features, recorded in the superblock as bit flags.  A
+   * journaled disk has its metadata updates written to the journal
+   * before they are written in place.
+   */
+  public static final int FEATURE_JOURNAL = 1;
+
+  /**
+   * Size of the metadata journal region at the end of the raw disk file
+   */
+  public static final int JOURNAL_SIZE = 512 * BLOCK_SIZE;
+
+  /**
+   * Byte offsets of the superblock, free block list and inode list within
+   * the raw disk file.  The inode list starts on a block boundary; where
+   * the data blocks and journal start depends on the layout version.
+   */
+  public static final long SUPERBLOCK_OFFSET = 0;
+  public static final long FREE_LIST_OFFSET = SUPERBLOCK_OFFSET + SUPERBLOCK_SIZE;
+  public static final long INODE_LIST_OFFSET = FREE_LIST_OFFSET + BYTES_IN_FREE_SPACE_LIST;
+
+  protected static String RAW_DISK_MODE = "rw";
 
-  private String diskFileName;
-  private RandomAccessFile rawDisk;
+  protected String diskFileName;
+  protected RandomAccessFile rawDisk;
+
+  /**
+   * Channel for asynchronous data block transfers, opened on first use
+   */
+  protected AsynchronousFileChannel asyncDisk;
+  protected int layoutVersion = LAYOUT_VERSION;
+  protected int inodeFormat = INODE_FORMAT_POINTERS;
+  protected int features = 0;
 
   public Disk() {
     this.diskFileName = RAW_DISK_NAME;
   }
 
   /***
-   * Initialize a new disk
+   * Returns the allocation group an inode belongs to
+   *
+   * @param whichInode Inode number
+   * @return Its group
+   */
+  public static int groupOfInode(int whichInode) {
+    return whichInode / INODES_PER_GROUP;
+  }
+
+  /***
+   * Returns the allocation group a data block belongs to
+   *
+   * @param whichBlock Data block number
+   * @return Its group
+   */
+  public static int groupOfBlock(int whichBlock) {
+    return whichBlock / BLOCKS_PER_GROUP;
+  }
+
+  /***
+   * Initialize a new disk whose inodes hold block pointers
    *
    * @throws IOException If an I/O error occurs
    */
   public void format() throws IOException {
+    format(INODE_FORMAT_POINTERS);
+  }
+
+  /***
+   * Initialize a new disk.  The file is sized with <code>setLength</code>,
+   * which leaves the data blocks and journal zeroed without writing them, and the
+   * superblock, free block list and inode list are written with a single
+   * write.
+   *
+   * @param inodeFormat How file blocks are recorded in inodes, one of
+   *                    INODE_FORMAT_POINTERS or INODE_FORMAT_EXTENTS
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>inodeFormat</code> is not a known format
+   */
+  public void format(int inodeFormat) throws IOException, IllegalArgumentException {
+    format(inodeFormat, 0);
+  }
+
+  /***
+   * Initialize a new disk with optional features
+   *
+   * @param inodeFormat How file blocks are recorded in inodes, one of
+   *                    INODE_FORMAT_POINTERS or INODE_FORMAT_EXTENTS
+   * @param features Feature flags, e.g. FEATURE_JOURNAL, or 0 for none
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>inodeFormat</code> or a
+   *                                  feature flag is not known
+   */
+  public void format(int inodeFormat, int features) throws IOException, IllegalArgumentException {
+    format(inodeFormat, features, LAYOUT_VERSION);
+  }
+
+  /***
+   * Initialize a new disk with a given layout version.  Only needed to
+   * create disks that older code can read.
+   *
+   * @param inodeFormat How file blocks are recorded in inodes, one of
+   *                    INODE_FORMAT_POINTERS or INODE_FORMAT_EXTENTS
+   * @param features Feature flags, e.g. FEATURE_JOURNAL, or 0 for none
+   * @param layoutVersion LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>inodeFormat</code>, a feature
+   *                                  flag or <code>layoutVersion</code> is not known
+   */
+  public void format(int inodeFormat, int features, int layoutVersion) throws IOException, IllegalArgumentException {
+    if (layoutVersion != LAYOUT_VERSION_1 && layoutVersion != LAYOUT_VERSION_2) {
+      throw new IllegalArgumentException("Disk::format:  unknown layout version " + layoutVersion);
+    }
+    if (inodeFormat != INODE_FORMAT_POINTERS && inodeFormat != INODE_FORMAT_EXTENTS) {
+      throw new IllegalArgumentException("Disk::format:  unknown inode format " + inodeFormat);
+    }
+    if ((features & ~FEATURE_JOURNAL) != 0) {
+      throw new IllegalArgumentException("Disk::format:  unknown features " + features);
+    }
+
+    close();
+    this.layoutVersion = layoutVersion;
+    this.inodeFormat = inodeFormat;
+    this.features = features;
     rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
-    byte[] freeListBytes = new byte[BYTES_IN_FREE_SPACE_LIST];
 
-    INode emptyINode = new INode();
+    /**
+     * Drop whatever the data blocks and journal held before, then extend the file
+     * back to full size; the extension reads back as zeros
+     */
+    rawDisk.setLength(Math.min(rawDisk.length(), dataBlocksOffset(layoutVersion)));
+    rawDisk.setLength(diskSize(layoutVersion));
 
-    byte[] emptyDiskBlock = new byte[BLOCK_SIZE];
+    ByteBuffer metadata = ByteBuffer.allocate((int)dataBlocksOffset(layoutVersion));
 
     /**
-     * write an empty free block list
+     * superblock, followed by an empty free block list
      */
-    rawDisk.write(freeListBytes);
+    writeSuperblock(metadata, layoutVersion, inodeFormat, features);
 
     /**
-     * write empty inodes
+     * empty inodes, one per inode slot
      */
-    for(int i= 0; i < NUM_INODES; i++) {
-      rawDisk.write(emptyINode.getFileNameBytes());
-      rawDisk.write(emptyINode.getSizeBytes());
+    INode emptyINode = new INode();
 
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        byte[] blockPtr = emptyINode.getBlockPointerBytes(blkPtrIndex);
-        rawDisk.write(blockPtr);
-      }
+    for (int i= 0; i < NUM_INODES; i++) {
+      metadata.position((int)inodeOffset(i));
+      emptyINode.writeTo(metadata);
     }
 
-    /**
-     * write empty disk data blocks
-     */
-    for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
-      rawDisk.write(emptyDiskBlock);
+    metadata.clear();
+    writeFully(metadata, 0);
+  }
+
+  /***
+   * Opens an existing disk without formatting it
+   *
+   * @throws IOException If the disk file does not exist, or was not
+   *                     formatted with this disk's layout
+   */
+  public void mount() throws IOException {
+    close();
+
+    if (!new File(diskFileName).isFile()) {
+      throw new IOException("Disk::mount:  " + diskFileName + " does not exist");
+    }
+
+    rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+    try {
+      checkSuperblock();
+    } catch (IOException e) {
+      close();
+      throw e;
     }
   }
 
+  /***
+   * Returns the layout version the disk was formatted with
+   *
+   * @return LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   */
+  public int getLayoutVersion() {
+    return layoutVersion;
+  }
+
+  /***
+   * Returns the inode format the disk was formatted with
+   *
+   * @return INODE_FORMAT_POINTERS or INODE_FORMAT_EXTENTS
+   */
+  public int getInodeFormat() {
+    return inodeFormat;
+  }
+
+  /***
+   * Returns the feature flags the disk was formatted with
+   *
+   * @return Feature flags, e.g. FEATURE_JOURNAL
+   */
+  public int getFeatures() {
+    return features;
+  }
+
   /***
    * Retrieve the free block list
    *
@@ -74,8 +300,7 @@ public class Disk {
   public byte[] readFreeBlockList() throws IOException {
     byte[] freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
 
-    rawDisk.seek((long)0);
-    rawDisk.read(freeList);
+    readFully(ByteBuffer.wrap(freeList), FREE_LIST_OFFSET);
 
     return freeList;
   }
@@ -98,8 +323,7 @@ public class Disk {
                                        " bytes long");
     }
 
-    rawDisk.seek((long)0);
-    rawDisk.write(freeBlockList);
+    writeFully(ByteBuffer.wrap(freeBlockList), FREE_LIST_OFFSET);
   }
 
 
@@ -111,26 +335,16 @@ public class Disk {
    * @throws IOException If an I/O error occurs
    */
   public void writeInode(INode inode, int whichInode) throws IOException {
-      byte[] name = inode.getFileNameBytes();
-      byte[] size = inode.getSizeBytes();
-      byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
+      ByteBuffer fields = INODE_BUFFER.get();
 
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPointers[i] = inode.getBlockPointerBytes(i);
-      }
-
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+      fields.clear();
+      inode.writeTo(fields);
+      fields.flip();
 
       /**
-       * Seek to correct position in the raw file
+       * Write every field with one positional write so no file pointer is shared
        */
-      rawDisk.seek((long)cursor);
-
-      rawDisk.write(name);
-      rawDisk.write(size);
-      for (int j= 0; j < INode.NUM_BLOCK_POINTERS; j++) {
-        rawDisk.write(blockPointers[j]);
-      }
+      writeFully(fields, inodeOffset(whichInode));
   }
 
   /***
@@ -138,52 +352,49 @@ public class Disk {
    *
    * @param whichInode The <code>INode</code> position in the file system to be read
    * @return An instance of INode read from the disk.
-   * @throws IOException If the first byte cannot be read for any reason other than end of file, or if
-   *    *                the random access file has been closed, or if some other I/O error occurs
+   * @throws IOException If the inode cannot be read for any reason, including reaching
+   *                     the end of file, or if the random access file has been closed
    */
   public INode readInode(int whichInode) throws IOException {
-      INode inode = new INode();
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
-
-      rawDisk.seek((long)cursor);
+      ByteBuffer fields = INODE_BUFFER.get();
 
-      byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
-      int nameReadLen = rawDisk.read(fileNameBytes);
+      fields.clear();
+      readFully(fields, inodeOffset(whichInode));
+      fields.flip();
 
-      int fileSizeField = rawDisk.readInt();
+      return INode.readFrom(fields);
+  }
 
-      /**
-       * read each block pointer
-       */
-      int[] blockPtrValues = new int[INode.NUM_BLOCK_POINTERS];
+  /***
+   * Reads the whole inode list with a single read
+   *
+   * @return A table holding every inode
+   * @throws IOException If the inode list cannot be read
+   */
+  public INodeTable readINodeTable() throws IOException {
+    ByteBuffer inodes = ByteBuffer.allocate(inodeSlotSize(layoutVersion) * NUM_INODES);
 
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPtrValues[i]= rawDisk.readInt();
-      }
+    readFully(inodes, INODE_LIST_OFFSET);
 
-      String fileName = new String(fileNameBytes);
+    return decodeINodeTable(inodes, inodeSlotSize(layoutVersion));
+  }
 
-      /**
-       * Null string is all 0's but
-       * the conversion makes it the empty string.
-       */
-      int nameSum = 0;
-      for (int index = 0; index < fileNameBytes.length; index++) {
-        nameSum += fileNameBytes[index];
-      }
+  /***
+   * Decodes an inode list laid out as on disk, inode <code>i</code> starting
+   * at <code>i * slotSize</code>
+   *
+   * @param inodes Buffer holding the inode list
+   * @param slotSize Size of an inode slot in the disk's layout
+   * @return A table holding every inode
+   */
+  protected static INodeTable decodeINodeTable(ByteBuffer inodes, int slotSize) {
+    INodeTable table = new INodeTable();
 
-      if ( nameSum <= 0) {
-         inode.setFileName(null);
-      } else {
-        inode.setFileName(fileName);
-      }
-      inode.setSize(fileSizeField);
+    for (int i= 0; i < NUM_INODES; i++) {
+      table.load(i, inodes, i * slotSize);
+    }
 
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        inode.setBlockPointer(blkPtrIndex, blockPtrValues[blkPtrIndex]);
-      }
-      
-      return inode;
+    return table;
   }
 
   /***
@@ -194,11 +405,9 @@ public class Disk {
    * @throws IOException If an I/O error occurs
    */
   public byte[] readDataBlock(int whichBlock) throws IOException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE * whichBlock);
     byte[] blockData = new byte[BLOCK_SIZE];
 
-    rawDisk.seek(cursor);
-    rawDisk.read(blockData);
+    readFully(ByteBuffer.wrap(blockData), dataBlockOffset(whichBlock));
 
     return blockData;
   }
@@ -214,16 +423,461 @@ public class Disk {
    *                                  to the length of a data block size
    */
   public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE *whichBlock);
-
     if (blockData.length != BLOCK_SIZE) {
        throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
                      "storing block of size " + blockData.length  +
                      "when it should be of size "  + BLOCK_SIZE);
     }
 
-    rawDisk.seek(cursor);
-    rawDisk.write(blockData);
+    writeFully(ByteBuffer.wrap(blockData), dataBlockOffset(whichBlock));
+  }
+
+  /***
+   * Reads from the journal region
+   *
+   * @param dst Buffer to fill
+   * @param position Byte offset within the journal region
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the read would run past the journal region
+   */
+  public void readJournal(ByteBuffer dst, long position) throws IOException, IllegalArgumentException {
+    checkJournalRange("Disk::readJournal", position, dst.remaining());
+    readFully(dst, journalOffset(layoutVersion) + position);
+  }
+
+  /***
+   * Writes to the journal region
+   *
+   * @param src Buffer to write
+   * @param position Byte offset within the journal region
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the write would run past the journal region
+   */
+  public void writeJournal(ByteBuffer src, long position) throws IOException, IllegalArgumentException {
+    checkJournalRange("Disk::writeJournal", position, src.remaining());
+    writeFully(src, journalOffset(layoutVersion) + position);
+  }
+
+  /***
+   * Flushes the disk and waits until everything written so far is on
+   * stable storage
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void force() throws IOException {
+    flush();
+    rawDisk.getChannel().force(false);
+  }
+
+  /***
+   * Pushes any buffered writes down to the raw disk.  The raw disk is
+   * written through, so there is nothing to do here.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void flush() throws IOException {
+  }
+
+  /***
+   * Flushes and releases the raw disk
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException {
+    flush();
+    synchronized (this) {
+      if (asyncDisk != null) {
+        asyncDisk.close();
+        asyncDisk = null;
+      }
+    }
+    if (rawDisk != null) {
+      rawDisk.close();
+      rawDisk = null;
+    }
+  }
+
+  /***
+   * Reads the data blocks listed in <code>blocks</code>, in order, into
+   * <code>dst</code>.  Runs of consecutive block numbers are read with a
+   * single positional read.  Reading stops once <code>dst</code> is full,
+   * so the last block may be read only in part.
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @throws IOException If an I/O error occurs
+   */
+  public void readDataBlocks(int[] blocks, ByteBuffer dst) throws IOException {
+    int i = 0;
+
+    while (i < blocks.length && dst.hasRemaining()) {
+      int runLength = runLength(blocks, i);
+      int runBytes = Math.min(runLength * BLOCK_SIZE, dst.remaining());
+
+      ByteBuffer run = dst.duplicate();
+      run.limit(run.position() + runBytes);
+      readFully(run, dataBlockOffset(blocks[i]));
+
+      dst.position(dst.position() + runBytes);
+      i += runLength;
+    }
+  }
+
+  /***
+   * Writes the contents of <code>src</code> to the data blocks listed in
+   * <code>blocks</code>, in order.  Runs of consecutive block numbers are
+   * written with a single positional write.  If <code>src</code> ends part
+   * way through the last block, the rest of that block is left unchanged.
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  public void writeDataBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    if (src.remaining() > (long)blocks.length * BLOCK_SIZE) {
+      throw new IllegalArgumentException("Disk::writeDataBlocks:  " +
+                    "storing " + src.remaining() + " bytes in " +
+                    blocks.length + " blocks of size " + BLOCK_SIZE);
+    }
+
+    int i = 0;
+
+    while (i < blocks.length && src.hasRemaining()) {
+      int runLength = runLength(blocks, i);
+      int runBytes = Math.min(runLength * BLOCK_SIZE, src.remaining());
+
+      ByteBuffer run = src.duplicate();
+      run.limit(run.position() + runBytes);
+      writeFully(run, dataBlockOffset(blocks[i]));
+
+      src.position(src.position() + runBytes);
+      i += runLength;
+    }
+  }
+
+  /***
+   * Reads data blocks like <code>readDataBlocks</code> without blocking
+   * the calling thread.  Each run of consecutive blocks is one request on
+   * an <code>AsynchronousFileChannel</code>, and all of them are in flight
+   * together.  <code>dst</code> must not be used until the returned future
+   * completes; its position is then past the bytes read.
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @return A future completing once every block has been read
+   * @throws IOException If the disk has not been formatted or mounted
+   */
+  public CompletableFuture<Void> readDataBlocksAsync(int[] blocks, ByteBuffer dst) throws IOException {
+    return transferDataBlocks(blocks, dst, false);
+  }
+
+  /***
+   * Writes data blocks like <code>writeDataBlocks</code> without blocking
+   * the calling thread.  <code>src</code> must not be changed until the
+   * returned future completes; its position is then at its limit.
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @return A future completing once every block has been written
+   * @throws IOException If the disk has not been formatted or mounted
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  public CompletableFuture<Void> writeDataBlocksAsync(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    if (src.remaining() > (long)blocks.length * BLOCK_SIZE) {
+      throw new IllegalArgumentException("Disk::writeDataBlocksAsync:  " +
+                    "storing " + src.remaining() + " bytes in " +
+                    blocks.length + " blocks of size " + BLOCK_SIZE);
+    }
+    return transferDataBlocks(blocks, src, true);
+  }
+
+  /***
+   * Starts one asynchronous transfer per run of consecutive blocks
+   */
+  private CompletableFuture<Void> transferDataBlocks(int[] blocks, ByteBuffer buffer, boolean write) throws IOException {
+    AsynchronousFileChannel channel = asyncChannel();
+    List<CompletableFuture<Void>> runs = new ArrayList<>();
+    int position = buffer.position();
+    int i = 0;
+
+    while (i < blocks.length && position < buffer.limit()) {
+      int runLength = runLength(blocks, i);
+      int runBytes = Math.min(runLength * BLOCK_SIZE, buffer.limit() - position);
+
+      ByteBuffer run = buffer.duplicate();
+      run.position(position).limit(position + runBytes);
+      runs.add(transferFully(channel, run, dataBlockOffset(blocks[i]), write));
+
+      position += runBytes;
+      i += runLength;
+    }
+
+    int end = position;
+    return CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0]))
+        .thenRun(() -> buffer.position(end));
+  }
+
+  /***
+   * Transfers all of <code>buffer</code> at <code>position</code>,
+   * reissuing the request after a short read or write
+   */
+  private static CompletableFuture<Void> transferFully(AsynchronousFileChannel channel, ByteBuffer buffer,
+                                                       long position, boolean write) {
+    Transfer transfer = new Transfer(channel, buffer, write);
+    transfer.start(position);
+    return transfer.done;
+  }
+
+  /***
+   * One asynchronous transfer of a whole buffer; the attachment is the
+   * position of the request in flight
+   */
+  private static class Transfer implements CompletionHandler<Integer, Long> {
+    private final AsynchronousFileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean write;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Transfer(AsynchronousFileChannel channel, ByteBuffer buffer, boolean write) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.write = write;
+    }
+
+    void start(long position) {
+      try {
+        if (write) {
+          channel.write(buffer, position, position, this);
+        } else {
+          channel.read(buffer, position, position, this);
+        }
+      } catch (RuntimeException e) {
+        done.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public void completed(Integer count, Long position) {
+      if (count < 0) {
+        done.completeExceptionally(new EOFException("Disk::readDataBlocksAsync:  end of disk at byte " + position));
+      } else if (!buffer.hasRemaining()) {
+        done.complete(null);
+      } else {
+        start(position + count);
+      }
+    }
+
+    @Override
+    public void failed(Throwable e, Long position) {
+      done.completeExceptionally(e);
+    }
+  }
+
+  /***
+   * Returns the channel for asynchronous transfers, opening it on first use
+   *
+   * @throws IOException If the disk has not been formatted or mounted
+   */
+  private synchronized AsynchronousFileChannel asyncChannel() throws IOException {
+    if (rawDisk == null) {
+      throw new IOException("Disk::asyncChannel:  disk has not been formatted or mounted");
+    }
+    if (asyncDisk == null) {
+      asyncDisk = AsynchronousFileChannel.open(Paths.get(diskFileName),
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    return asyncDisk;
+  }
+
+  /***
+   * Fills <code>dst</code> from the raw file starting at <code>position</code>.
+   * Positional reads leave the file pointer alone, so concurrent callers do
+   * not interfere with each other.
+   *
+   * @param dst Buffer to fill
+   * @param position Byte offset in the raw file
+   * @throws IOException If the end of the raw file is reached or an I/O error occurs
+   */
+  protected void readFully(ByteBuffer dst, long position) throws IOException {
+    FileChannel channel = rawDisk.getChannel();
+
+    while (dst.hasRemaining()) {
+      int readLen = channel.read(dst, position);
+      if (readLen < 0) {
+        throw new EOFException("Disk::readFully:  end of disk at byte " + position);
+      }
+      position += readLen;
+    }
+  }
+
+  /***
+   * Writes all of <code>src</code> to the raw file starting at <code>position</code>
+   * without moving the file pointer
+   *
+   * @param src Buffer to write
+   * @param position Byte offset in the raw file
+   * @throws IOException If an I/O error occurs
+   */
+  protected void writeFully(ByteBuffer src, long position) throws IOException {
+    FileChannel channel = rawDisk.getChannel();
+
+    while (src.hasRemaining()) {
+      position += channel.write(src, position);
+    }
+  }
+
+  /***
+   * Checks that <code>length</code> bytes at <code>position</code> lie
+   * within the journal region
+   */
+  protected static void checkJournalRange(String caller, long position, int length) {
+    if (position < 0 || position + length > JOURNAL_SIZE) {
+      throw new IllegalArgumentException(caller + ":  " + length + " bytes at " + position +
+                    " do not fit the journal of " + JOURNAL_SIZE + " bytes");
+    }
+  }
+
+  /***
+   * Counts the consecutive block numbers starting at <code>blocks[from]</code>
+   *
+   * @param blocks List of block positions
+   * @param from Index in <code>blocks</code> at which the run starts
+   * @return The number of entries in the run
+   */
+  protected static int runLength(int[] blocks, int from) {
+    int end = from + 1;
+    while (end < blocks.length && blocks[end] == blocks[end - 1] + 1) {
+      end++;
+    }
+    return end - from;
+  }
+
+  /***
+   * Puts the superblock into <code>dst</code> at the superblock offset
+   *
+   * @param dst Buffer holding the start of the raw file
+   * @param layoutVersion The layout version of the disk
+   * @param inodeFormat The inode format of the disk
+   * @param features The feature flags of the disk
+   */
+  static void writeSuperblock(ByteBuffer dst, int layoutVersion, int inodeFormat, int features) {
+    dst.putInt((int)SUPERBLOCK_OFFSET, SUPERBLOCK_MAGIC);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 4, layoutVersion);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 8, BLOCK_SIZE);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 12, NUM_BLOCKS);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 16, NUM_INODES);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 20, inodeFormat);
+    dst.putInt((int)SUPERBLOCK_OFFSET + 24, features);
+  }
+
+  /***
+   * Checks that the raw file is large enough and that its superblock
+   * matches this disk's layout
+   *
+   * @throws IOException If the raw file is not a disk formatted with this layout
+   */
+  private void checkSuperblock() throws IOException {
+    if (rawDisk.length() < SUPERBLOCK_SIZE) {
+      throw new IOException("Disk::mount:  " + diskFileName + " is not a formatted disk");
+    }
+
+    ByteBuffer superblock = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+    readFully(superblock, SUPERBLOCK_OFFSET);
+
+    if (superblock.getInt(0) != SUPERBLOCK_MAGIC) {
+      throw new IOException("Disk::mount:  " + diskFileName + " is not a formatted disk");
+    }
+    int version = superblock.getInt(4);
+    if ((version != LAYOUT_VERSION_1 && version != LAYOUT_VERSION_2) ||
+        superblock.getInt(8) != BLOCK_SIZE ||
+        superblock.getInt(12) != NUM_BLOCKS ||
+        superblock.getInt(16) != NUM_INODES) {
+      throw new IOException("Disk::mount:  " + diskFileName + " has layout version " +
+                    superblock.getInt(4) + " with " + superblock.getInt(12) + " blocks of " +
+                    superblock.getInt(8) + " bytes and " + superblock.getInt(16) +
+                    " inodes, which does not match this disk");
+    }
+
+    int format = superblock.getInt(20);
+    if (format != INODE_FORMAT_POINTERS && format != INODE_FORMAT_EXTENTS) {
+      throw new IOException("Disk::mount:  " + diskFileName + " has unknown inode format " + format);
+    }
+    inodeFormat = format;
+
+    int flags = superblock.getInt(24);
+    if ((flags & ~FEATURE_JOURNAL) != 0) {
+      throw new IOException("Disk::mount:  " + diskFileName + " has unknown features " + flags);
+    }
+    features = flags;
+
+    if (rawDisk.length() < diskSize(version)) {
+      throw new IOException("Disk::mount:  " + diskFileName + " is " +
+                    rawDisk.length() + " bytes long instead of " + diskSize(version));
+    }
+    layoutVersion = version;
+  }
+
+  /***
+   * Computes the position of an inode in the raw file
+   *
+   * @param whichInode The <code>INode</code> position in the file system
+   * @return The byte offset of the inode in the raw file
+   */
+  protected long inodeOffset(int whichInode) {
+    return INODE_LIST_OFFSET + ((long)inodeSlotSize(layoutVersion) * whichInode);
+  }
+
+  /***
+   * Computes the position of a data block in the raw file
+   *
+   * @param whichBlock The block position in the file system
+   * @return The byte offset of the data block in the raw file
+   */
+  protected long dataBlockOffset(int whichBlock) {
+    return dataBlocksOffset(layoutVersion) + ((long)BLOCK_SIZE * whichBlock);
+  }
+
+  /***
+   * Returns the size of an inode slot
+   *
+   * @param layoutVersion LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   * @return INODE_SIZE or COMPACT_INODE_SIZE
+   */
+  public static int inodeSlotSize(int layoutVersion) {
+    return layoutVersion == LAYOUT_VERSION_1 ? INODE_SIZE : COMPACT_INODE_SIZE;
+  }
+
+  /***
+   * Returns the byte offset of the first data block in the raw file
+   *
+   * @param layoutVersion LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   * @return The offset just past the inode list
+   */
+  public static long dataBlocksOffset(int layoutVersion) {
+    return INODE_LIST_OFFSET + ((long)inodeSlotSize(layoutVersion) * NUM_INODES);
+  }
+
+  /***
+   * Returns the byte offset of the journal region in the raw file
+   *
+   * @param layoutVersion LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   * @return The offset just past the data blocks
+   */
+  public static long journalOffset(int layoutVersion) {
+    return dataBlocksOffset(layoutVersion) + ((long)BLOCK_SIZE * NUM_BLOCKS);
+  }
+
+  /***
+   * Returns the size of the raw file
+   *
+   * @param layoutVersion LAYOUT_VERSION_1 or LAYOUT_VERSION_2
+   * @return The offset just past the journal region
+   */
+  public static long diskSize(int layoutVersion) {
+    return journalOffset(layoutVersion) + JOURNAL_SIZE;
   }
 
   /***
@@ -0,0 +1,151 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Maps the block indexes of a file to disk blocks through extents stored
+ * in the file's inode.  The block pointers are read as MAX_EXTENTS pairs of
+ * (first block, number of blocks), so a contiguous file is described by a
+ * single pair and needs no other metadata.  Unused pairs have a length of
+ * zero or less.
+ */
+class ExtentBlockMap implements BlockMap {
+    public static final int MAX_EXTENTS = INode.NUM_BLOCK_POINTERS / 2;
+
+    @Override
+    public int[] lookup(INode inode, int first, int count) throws IOException {
+        int[] blocks = new int[count];
+        Arrays.fill(blocks, -1);
+
+        int extentFirst = 0;
+        for (int e = 0; e < MAX_EXTENTS && extentFirst < first + count; e++) {
+            int start = inode.getBlockPointer(2 * e);
+            int length = inode.getBlockPointer((2 * e) + 1);
+            if (length <= 0) {
+                break;
+            }
+
+            // Copy the part of this extent that overlaps the requested range
+            int from = Math.max(first, extentFirst);
+            int to = Math.min(first + count, extentFirst + length);
+            for (int index = from; index < to; index++) {
+                blocks[index - first] = start + (index - extentFirst);
+            }
+            extentFirst += length;
+        }
+
+        return blocks;
+    }
+
+    @Override
+    public void assign(INode inode, int first, int[] blocks, int[] metadataBlocks) throws IOException {
+        int[] extents = extentsFor(inode, first, blocks);
+        if (extents == null) {
+            throw new IOException("ExtentBlockMap::assign: file would need more than " +
+                    MAX_EXTENTS + " extents");
+        }
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, extents[i]);
+        }
+    }
+
+    @Override
+    public boolean canAssign(INode inode, int first, int[] blocks) {
+        return extentsFor(inode, first, blocks) != null;
+    }
+
+    /**
+     * Returns the block pointers of the inode once <code>blocks</code> are
+     * assigned from <code>first</code> on
+     *
+     * @return The new block pointers, or null if the blocks would need more
+     *         than MAX_EXTENTS extents
+     */
+    private static int[] extentsFor(INode inode, int first, int[] blocks) {
+        int[] extents = new int[INode.NUM_BLOCK_POINTERS];
+        int used = 0;
+
+        // Keep the extents covering the first blocks of the file
+        int covered = 0;
+        while (used < MAX_EXTENTS && covered < first) {
+            int length = inode.getBlockPointer((2 * used) + 1);
+            if (length <= 0) {
+                break;
+            }
+            extents[2 * used] = inode.getBlockPointer(2 * used);
+            extents[(2 * used) + 1] = Math.min(length, first - covered);
+            covered += extents[(2 * used) + 1];
+            used++;
+        }
+
+        // Append the new blocks, growing the last extent while they continue it
+        for (int block : blocks) {
+            if (used > 0 && extents[2 * (used - 1)] + extents[(2 * used) - 1] == block) {
+                extents[(2 * used) - 1]++;
+                continue;
+            }
+            if (used == MAX_EXTENTS) {
+                return null;
+            }
+            extents[2 * used] = block;
+            extents[(2 * used) + 1] = 1;
+            used++;
+        }
+
+        Arrays.fill(extents, 2 * used, INode.NUM_BLOCK_POINTERS, -1);
+        return extents;
+    }
+
+    @Override
+    public int[] release(INode inode) {
+        int[] held = inodeBlocks(inode);
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, -1);
+        }
+
+        return held;
+    }
+
+    @Override
+    public int[] heldBlocks(INode inode) {
+        return inodeBlocks(inode);
+    }
+
+    /**
+     * Extent lengths are capped at the number of blocks on the disk, so a
+     * damaged inode cannot name more blocks than exist
+     */
+    @Override
+    public int[] inodeBlocks(INode inode) {
+        int total = 0;
+        for (int e = 0; e < MAX_EXTENTS && inode.getBlockPointer((2 * e) + 1) > 0; e++) {
+            total += Math.min(inode.getBlockPointer((2 * e) + 1), Disk.NUM_BLOCKS);
+        }
+
+        int[] blocks = new int[total];
+        int count = 0;
+        for (int e = 0; e < MAX_EXTENTS && inode.getBlockPointer((2 * e) + 1) > 0; e++) {
+            int start = inode.getBlockPointer(2 * e);
+            int length = Math.min(inode.getBlockPointer((2 * e) + 1), Disk.NUM_BLOCKS);
+            for (int i = 0; i < length; i++) {
+                blocks[count++] = start + i;
+            }
+        }
+
+        return blocks;
+    }
+
+    @Override
+    public int metadataBlocksFor(int numBlocks) {
+        return 0;
+    }
+
+    @Override
+    public int maxFileBlocks() {
+        return Disk.NUM_BLOCKS;
+    }
+}
@@ -0,0 +1,54 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * A sequential read-only view of an open file.  Each read is served by
+ * <code>FileSystem.read(int, ByteBuffer)</code> at the descriptor's
+ * position, so a file can be consumed block by block without holding all
+ * of it in memory.
+ */
+class FileReadChannel implements ReadableByteChannel {
+    private final FileSystem fileSystem;
+    private final int fileDescriptor;
+    private boolean open;
+
+    FileReadChannel(FileSystem fileSystem, int fileDescriptor) {
+        this.fileSystem = fileSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.open = true;
+    }
+
+    /**
+     * Reads the next bytes of the file into <code>dst</code>
+     *
+     * @param dst - buffer receiving the bytes
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException If the channel is closed or the file cannot be read
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        return fileSystem.read(fileDescriptor, dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel.  The file itself stays open in the file system.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -3,20 +3,167 @@ package filesystem;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 public class FileSystem {
 
-    static Disk diskDevice;
+    /**
+     * Number of read/write locks the inodes are striped across
+     */
+    public static final int LOCK_STRIPES = 64;
+
+    Disk diskDevice;
+
+    /**
+     * Open file table: descriptor to open file.  A descriptor is the number
+     * of the file's inode, so opening an open file returns the same entry.
+     */
+    private Map<Integer, OpenFile> openFiles;
+
+    /**
+     * Locking: the directory, free inode set and open file table are guarded
+     * by <code>namespaceLock</code>.  A file's inode and data are guarded by
+     * the read/write lock of its stripe, so operations on different files run
+     * in parallel.  When both are needed the namespace lock is taken first.
+     * The free block list carries its own lock.
+     *
+     * Asynchronous reads and writes outlive the inode lock they were started
+     * under; they are counted per stripe in <code>asyncReads</code> and
+     * <code>asyncWrites</code>, guarded by <code>asyncIO</code>, and taking an
+     * inode lock waits for the transfers that conflict with it.
+     */
+    private final Object namespaceLock = new Object();
+    private final ReentrantReadWriteLock[] inodeLocks;
+    private final Object asyncIO = new Object();
+    private final int[] asyncReads = new int[LOCK_STRIPES];
+    private final int[] asyncWrites = new int[LOCK_STRIPES];
+
+    /**
+     * The free block list is read once when the file system is mounted and
+     * kept in memory; it is written back only when dirty, at sync points
+     */
+    FreeBlockList freeList;
+    private volatile boolean freeListDirty;
+
+    /**
+     * In-memory directory: trimmed file name to inode number, and the set
+     * of inodes that are not in use.  Built when the file system is mounted
+     * and kept in step with create/delete so name lookups need no disk I/O.
+     */
+    private Map<String, Integer> directory;
+    private BitSet freeINodes;
+
+    /**
+     * Allocation group the next new file's inode is looked for in first,
+     * guarded by the namespace lock
+     */
+    private int nextGroup;
+
+    /**
+     * Every inode as last written to disk, read with a single I/O when the
+     * file system is mounted.  Inodes are written through to the disk and
+     * the table together, so opening a file reads no inode from disk.  An
+     * inode's entry is guarded by the inode's lock.
+     */
+    private INodeTable inodeTable;
+
+    /**
+     * Maps file blocks to disk blocks according to the disk's inode format
+     */
+    private BlockMap blockMap;
+
+    /**
+     * Metadata journal, or null if the disk was not formatted with
+     * <code>Disk.FEATURE_JOURNAL</code>.  When journaled, inodes and the
+     * free block list are written in place only after the transaction
+     * holding them has been committed to the journal.
+     */
+    private Journal journal;
 
-    private int iNodeNumber;
-    private int fileDescriptor;
-    private INode iNodeForFile;
-    private byte[] freeList;
+    /**
+     * Counts and latencies of file system operations, shared with the disk
+     * when it is a <code>MeteredDisk</code>
+     */
+    private final Metrics metrics;
+
+    /**
+     * Allocation, deallocation and I/O events, off unless enabled
+     */
+    private final Trace trace;
 
     public FileSystem() throws IOException {
-        diskDevice = new Disk();
-        diskDevice.format();
+        this(new Disk());
+    }
+
+    /**
+     * Creates a file system on top of the given disk, e.g. a
+     * <code>MappedDisk</code> to serve all disk accesses from memory
+     *
+     * @param disk - disk backing the file system
+     * @throws IOException If the disk cannot be formatted
+     */
+    public FileSystem(Disk disk) throws IOException {
+        this(disk, true);
+    }
+
+    /**
+     * Creates a file system on top of the given disk, either formatting it
+     * or mounting the file system already on it
+     *
+     * @param disk - disk backing the file system
+     * @param format - true to format the disk, false to mount it as it is
+     * @throws IOException If the disk cannot be formatted, or if it cannot be
+     *                     mounted or holds an inconsistent file system
+     */
+    public FileSystem(Disk disk, boolean format) throws IOException {
+        inodeLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            inodeLocks[i] = new ReentrantReadWriteLock();
+        }
+
+        diskDevice = disk;
+        metrics = (disk instanceof MeteredDisk) ? ((MeteredDisk) disk).getMetrics() : new Metrics();
+        trace = new Trace();
+        if (format) {
+            diskDevice.format();
+        } else {
+            diskDevice.mount();
+        }
+        freeList = new FreeBlockList();
+        if ((diskDevice.getFeatures() & Disk.FEATURE_JOURNAL) != 0) {
+            // Finish the metadata updates of transactions committed before a crash
+            journal = new Journal(diskDevice, freeList);
+            journal.replay();
+        }
+        freeList.setFreeBlockList(diskDevice.readFreeBlockList());
+        freeListDirty = false;
+        openFiles = new ConcurrentHashMap<>();
+        if (diskDevice.getInodeFormat() == Disk.INODE_FORMAT_EXTENTS) {
+            blockMap = new ExtentBlockMap();
+        } else {
+            blockMap = new IndirectBlockMap(diskDevice);
+        }
+        buildDirectoryIndex();
     }
 
     /**
@@ -27,31 +174,29 @@ public class FileSystem {
      * @throws IOException
      */
     public int create(String fileName) throws IOException {
-        INode tmpINode = null;
+        long start = System.nanoTime();
+        synchronized (namespaceLock) {
+            if (directory.containsKey(fileName.trim())) {
+                throw new IOException("FileSystem::create: " + fileName + " already exists");
+            }
 
-        boolean isCreated = false;
+            int i = chooseINode(freeINodes);
+            if (i < 0) {
+                throw new IOException("FileSystem::create: Unable to create file");
+            }
 
-        for (int i = 0; i < Disk.NUM_INODES && !isCreated; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String name = tmpINode.getFileName();
+            INode inode = new INode();
+            inode.setFileName(fileName);
 
-            // The Fix: Add a null check before calling trim()
-            if (name != null && name.trim().equals(fileName)) {
-                throw new IOException("FileSystem::create: " + fileName + " already exists");
-            } else if (tmpINode.getFileName() == null) { // No need for trim() here since we already checked for null
+            freeINodes.clear(i);
+            directory.put(fileName.trim(), i);
 
-                this.iNodeForFile = new INode();
-                this.iNodeForFile.setFileName(fileName);
-                this.iNodeNumber = i;
-                this.fileDescriptor = i;
-                isCreated = true;
-            }
-        }
-        if (!isCreated) {
-            throw new IOException("FileSystem::create: Unable to create file");
-        }
+            // The new inode reaches the disk when the file is closed
+            openFiles.put(i, new OpenFile(i, inode, true));
 
-        return fileDescriptor;
+            metrics.record(Metrics.Metric.CREATE, start, 0);
+            return i;
+        }
     }
 
 
@@ -62,38 +207,286 @@ public class FileSystem {
      * @throws IOException
      */
     public void delete(String fileName) throws IOException {
-        INode tmpINode = null;
-        boolean isFound = false;
-        int inodeNumForDeletion = -1;
+        long start = System.nanoTime();
+        synchronized (namespaceLock) {
+            Integer inodeNumForDeletion = directory.get(fileName.trim());
+
+            /**
+             * *
+             * If file found, go ahead and deallocate its blocks and null out the
+             * filename.
+             */
+            if (inodeNumForDeletion != null) {
+                Lock lock = lockForWrite(inodeNumForDeletion);
+                try {
+                    // Deleting an open file invalidates its descriptor; its inode is written here
+                    OpenFile file = openFiles.remove(inodeNumForDeletion);
+                    INode tmpINode = (file != null) ? file.getINode() : inodeTable.getINode(inodeNumForDeletion);
+                    if (file != null) {
+                        file.setDirty(false);
+                    }
+
+                    int[] released = deallocateBlocksForFile(inodeNumForDeletion, tmpINode);
+                    tmpINode.setFileName(null);
+                    writeINode(tmpINode, inodeNumForDeletion);
+                    freeReleasedBlocks(released);
+                } finally {
+                    lock.unlock();
+                }
 
-        /**
-         * Find the non-null named inode that matches, If you find it, set its
-         * file name to null to indicate it is unused
-         */
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
+                directory.remove(fileName.trim());
+                freeINodes.set(inodeNumForDeletion);
+            }
+        }
+        metrics.record(Metrics.Metric.DELETE, start, 0);
+    }
+
+    /**
+     * Returns the counts and latencies of the operations completed so far.
+     * Disk accesses are included when the file system is on a
+     * <code>MeteredDisk</code>.
+     *
+     * @return The file system's metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the trace of allocation, deallocation and I/O events, whose
+     * level, sink and sampling may be changed while the file system is in use
+     *
+     * @return The file system's trace
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Starts a batch of create, write and delete operations that are
+     * applied together when the batch is committed
+     *
+     * @return An empty batch for this file system
+     */
+    public Batch batch() {
+        return new Batch(this);
+    }
+
+    /**
+     * Applies the operations of a batch; see <code>Batch.commit()</code>.
+     * The operations are first reduced to what they leave behind for each
+     * file.  The blocks of every file written are then allocated with one
+     * call, so small files are laid out side by side, and the data of all
+     * of them goes to the disk in one block-ordered write.  Each changed
+     * inode is written once, in inode order.
+     *
+     * @param ops - the operations, in the order they were added
+     * @throws IOException If the batch cannot be applied or the disk cannot be written
+     */
+    void commitBatch(List<Batch.Op> ops) throws IOException {
+        synchronized (namespaceLock) {
+            // Reduce the operations to the end state of each file
+            Map<String, BatchFile> files = new LinkedHashMap<>();
+            for (Batch.Op op : ops) {
+                BatchFile file = files.get(op.fileName.trim());
+                if (file == null) {
+                    file = new BatchFile(directory.get(op.fileName.trim()));
+                    files.put(op.fileName.trim(), file);
+                }
+
+                switch (op.kind) {
+                    case CREATE:
+                        if (file.exists) {
+                            throw new IOException("FileSystem::batch: " + op.fileName + " already exists");
+                        }
+                        if (file.iNodeNumber == null) {
+                            file.inode = new INode();
+                            file.inode.setFileName(op.fileName);
+                        }
+                        file.exists = true;
+                        file.data = op.data;
+                        break;
+                    case WRITE:
+                        if (!file.exists) {
+                            throw new IOException("FileSystem::batch: " + op.fileName + " does not exist");
+                        }
+                        file.data = op.data;
+                        break;
+                    default:
+                        file.exists = false;
+                        file.data = null;
+                        break;
+                }
+            }
 
-            String fName = tmpINode.getFileName();
+            // Keep the files that change, choosing inodes for the new ones
+            // as create does; the free inodes are only marked used once the batch is applied
+            Map<Integer, BatchFile> changed = new TreeMap<>();
+            BitSet unused = (BitSet) freeINodes.clone();
+            for (BatchFile file : files.values()) {
+                if (file.iNodeNumber == null) {
+                    if (!file.exists) {
+                        continue;
+                    }
+                    int chosen = chooseINode(unused);
+                    if (chosen < 0) {
+                        throw new IOException("FileSystem::batch: Unable to create file");
+                    }
+                    unused.clear(chosen);
+                    file.iNodeNumber = chosen;
+                    file.created = true;
+                } else if (file.exists && file.data == null) {
+                    continue;
+                }
+                changed.put(file.iNodeNumber, file);
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
 
-            if (fName != null && fName.trim().compareTo(fileName.trim()) == 0) {
-                isFound = true;
-                inodeNumForDeletion = i;
-                break;
+            // Lock the changed inodes, stripe by stripe in ascending order
+            TreeSet<Integer> stripes = new TreeSet<>();
+            for (int iNodeNumber : changed.keySet()) {
+                stripes.add(Math.floorMod(iNodeNumber, LOCK_STRIPES));
+            }
+            for (int stripe : stripes) {
+                inodeLocks[stripe].writeLock().lock();
+            }
+            try {
+                for (int stripe : stripes) {
+                    awaitAsyncIO(stripe, true);
+                }
+                applyBatch(changed);
+            } finally {
+                for (int stripe : stripes) {
+                    inodeLocks[stripe].writeLock().unlock();
+                }
             }
         }
 
-        /**
-         * *
-         * If file found, go ahead and deallocate its blocks and null out the
-         * filename.
-         */
-        if (isFound) {
-            deallocateBlocksForFile(inodeNumForDeletion);
-            tmpINode.setFileName(null);
-            diskDevice.writeInode(tmpINode, inodeNumForDeletion);
-            this.iNodeForFile = null;
-            this.fileDescriptor = -1;
-            this.iNodeNumber = -1;
+        sync();
+    }
+
+    /**
+     * Applies the end state of the changed files of a batch.  The caller
+     * holds the namespace lock and the write lock of every changed inode.
+     * Everything that can refuse the batch, the size and space checks and
+     * the allocation of blocks the inodes can describe, happens before any
+     * file or the namespace is changed, so a refused batch changes nothing.
+     *
+     * @param changed - changed files by inode number
+     * @throws IOException If there are not enough free blocks or the disk cannot be written
+     */
+    private void applyBatch(Map<Integer, BatchFile> changed) throws IOException {
+        // Check that the blocks released and free cover the blocks needed
+        long blocksNeeded = 0;
+        // On a journaled disk the blocks released are reused only after a commit
+        long blocksAvailable = freeList.getFreeBlockCount() + ((journal != null) ? journal.pendingFreeCount() : 0);
+        for (BatchFile file : changed.values()) {
+            if (!file.created) {
+                OpenFile open = openFiles.get(file.iNodeNumber);
+                file.inode = (open != null) ? open.getINode() : inodeTable.getINode(file.iNodeNumber);
+
+                int held = blocksFor(Math.max(file.inode.getSize(), 0));
+                if (journal == null) {
+                    blocksAvailable += held + blockMap.metadataBlocksFor(held);
+                }
+            }
+            if (file.data != null) {
+                int required = blocksFor(file.data.length);
+                if (required > blockMap.maxFileBlocks()) {
+                    throw new IOException("FileSystem::write: " + file.data.length +
+                            " bytes exceeds the maximum file size of " +
+                            ((long) blockMap.maxFileBlocks() * Disk.BLOCK_SIZE) + " bytes");
+                }
+                blocksNeeded += required + blockMap.metadataBlocksFor(required);
+            }
+        }
+        if (blocksNeeded > blocksAvailable) {
+            throw new IOException("FileSystem::batch: " + blocksNeeded + " blocks needed, " +
+                    blocksAvailable + " available");
+        }
+
+        // Allocate for every file at once in place of the blocks released, each file in the group
+        // of its inode with its metadata blocks just ahead of its data, refusing blocks any of the
+        // inodes cannot describe
+        BatchFile[] files = changed.values().toArray(new BatchFile[0]);
+        int[] iNodeNumbers = new int[files.length];
+        int[][] released = new int[files.length][];
+        int[] required = new int[files.length];
+        int[] metadataBlocks = new int[files.length];
+        for (int i = 0; i < files.length; i++) {
+            iNodeNumbers[i] = files[i].iNodeNumber;
+            released[i] = files[i].created ? new int[0] : blockMap.heldBlocks(files[i].inode);
+            required[i] = (files[i].data != null) ? blocksFor(files[i].data.length) : 0;
+            metadataBlocks[i] = blockMap.metadataBlocksFor(required[i]);
+        }
+        int[] fileBlocks = new int[files.length];
+        Arrays.setAll(fileBlocks, i -> metadataBlocks[i] + required[i]);
+        int[][] allocated = allocateReplacing(iNodeNumbers, released, fileBlocks,
+                (i, blocks) -> blockMap.canAssign(files[i].inode, 0,
+                        Arrays.copyOfRange(blocks, metadataBlocks[i], blocks.length)));
+
+        // The batch can no longer be refused: update the namespace and the files
+        List<BatchFile> written = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < files.length; i++) {
+            BatchFile file = files[i];
+            if (file.created) {
+                freeINodes.clear(file.iNodeNumber);
+                directory.put(file.inode.getFileName().trim(), file.iNodeNumber);
+            } else {
+                blockMap.release(file.inode);
+                if (!file.exists) {
+                    OpenFile open = openFiles.remove(file.iNodeNumber);
+                    if (open != null) {
+                        open.setDirty(false);
+                    }
+                    directory.remove(file.inode.getFileName().trim());
+                    freeINodes.set(file.iNodeNumber);
+                    file.inode.setFileName(null);
+                }
+            }
+            if (file.data == null) {
+                continue;
+            }
+
+            file.blocks = Arrays.copyOfRange(allocated[i], metadataBlocks[i], allocated[i].length);
+            assignBlocks(file.inode, 0, file.blocks, Arrays.copyOf(allocated[i], metadataBlocks[i]));
+            file.inode.setSize(file.data.length);
+            next += required[i];
+
+            if (required[i] > 0) {
+                written.add(file);
+            }
+        }
+
+        // Write all the data with one call, in block order, each file padded to whole blocks
+        written.sort(Comparator.comparingInt(file -> file.blocks[0]));
+        int[] blocks = new int[next];
+        ByteBuffer data = ByteBuffer.allocate(next * Disk.BLOCK_SIZE);
+        int count = 0;
+        for (BatchFile file : written) {
+            System.arraycopy(file.blocks, 0, blocks, count, file.blocks.length);
+            count += file.blocks.length;
+            data.put(file.data);
+            data.position(count * Disk.BLOCK_SIZE);
+        }
+        data.flip();
+        diskDevice.writeDataBlocks(Arrays.copyOf(blocks, count), data);
+        traceBlocks(Trace.Event.DATA_WRITE, "batch", blocks, count);
+
+        // Write each changed inode once
+        for (BatchFile file : changed.values()) {
+            writeINode(file.inode, file.iNodeNumber);
+
+            OpenFile open = openFiles.get(file.iNodeNumber);
+            if (open != null) {
+                open.setDirty(false);
+            }
+        }
+        for (int[] blocksReleased : released) {
+            freeReleasedBlocks(blocksReleased);
         }
     }
 
@@ -105,59 +498,139 @@ public class FileSystem {
      * @throws IOException
      */
     public int open(String fileName) throws IOException {
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
-        INode tmpINode = null;
-        boolean isFound = false;
-        int iNodeContainingName = -1;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String fName = tmpINode.getFileName();
-            if (fName != null) {
-                if (fName.trim().compareTo(fileName.trim()) == 0) {
-                    isFound = true;
-                    iNodeContainingName = i;
-                    this.iNodeForFile = tmpINode;
-                }
+        long start = System.nanoTime();
+        synchronized (namespaceLock) {
+            Integer iNodeContainingName = directory.get(fileName.trim());
+
+            if (iNodeContainingName == null) {
+                return -1;
+            }
+
+            OpenFile file = openFiles.get(iNodeContainingName);
+            if (file != null) {
+                file.retain();
+            } else {
+                INode inode = inodeTable.getINode(iNodeContainingName);
+                openFiles.put(iNodeContainingName, new OpenFile(iNodeContainingName, inode, false));
+            }
+
+            metrics.record(Metrics.Metric.OPEN, start, 0);
+            return iNodeContainingName;
+        }
+    }
+
+    /**
+     * *
+     * Closes the file.  When the last reference to the file is closed its
+     * inode is written back if it has changed and the file system is synced.
+     *
+     * @throws IOException If the descriptor is not open or disk is not accessible for writing
+     */
+    public void close(int fileDescriptor) throws IOException {
+        long start = System.nanoTime();
+        boolean lastClose;
+
+        synchronized (namespaceLock) {
+            OpenFile file = openFile(fileDescriptor, "FileSystem::close");
+
+            lastClose = file.release();
+            if (lastClose) {
+                writeBackINode(file);
+                openFiles.remove(fileDescriptor);
             }
         }
 
-        if (isFound) {
-            this.fileDescriptor = iNodeContainingName;
-            this.iNodeNumber = fileDescriptor;
+        if (lastClose) {
+            sync();
+        }
+        metrics.record(Metrics.Metric.CLOSE, start, 0);
+    }
+
+    /**
+     * Writes changed inodes of open files and the free block list back to
+     * disk and flushes the disk.  On a journaled disk the changes join the
+     * open journal transaction, which is committed once it holds
+     * <code>Journal.DEFAULT_GROUP_SIZE</code> operations; use
+     * <code>force()</code> to commit it at once.
+     *
+     * @throws IOException If disk is not accessible for writing
+     */
+    public void sync() throws IOException {
+        for (OpenFile file : openFiles.values()) {
+            writeBackINode(file);
         }
 
-        return this.fileDescriptor;
+        if (journal != null) {
+            if (journal.endOperation()) {
+                journal.commit();
+            }
+        } else if (freeListDirty) {
+            // Clear the flag before taking the snapshot so a concurrent change marks it again
+            freeListDirty = false;
+            diskDevice.writeFreeBlockList(freeList.getFreeBlockList());
+        }
+        diskDevice.flush();
     }
 
     /**
-     * *
-     * Closes the file
+     * Syncs the file system and waits until every change made before the
+     * call is on stable storage.  On a journaled disk this commits the
+     * open transaction; threads forcing at the same time share one commit.
      *
      * @throws IOException If disk is not accessible for writing
      */
-    public void close(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber) {
+    public void force() throws IOException {
+        if (journal == null) {
+            sync();
+            diskDevice.force();
+            return;
+        }
+
+        for (OpenFile file : openFiles.values()) {
+            writeBackINode(file);
+        }
 
+        // Data overwritten in place changes no metadata, so force it even with nothing to commit
+        if (!journal.commit()) {
+            diskDevice.force();
         }
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
-        this.iNodeForFile = null;
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Forces the file system and closes the disk.  Every descriptor is
+     * invalidated; the disk can be mounted again by a new file system.
+     *
+     * @throws IOException If disk is not accessible for writing
      */
-    public String read(int fileDescriptor) throws IOException {
-        // TODO: Replace this line with your code
-        //validating the file descriptor
-        if (fileDescriptor != iNodeNumber || this.iNodeForFile == null)
-            throw new IOException("FileSystem:read: Invalid or inode is null");
+    public void unmount() throws IOException {
+        synchronized (namespaceLock) {
+            force();
+            openFiles.clear();
+            diskDevice.close();
+        }
+    }
 
-        INode inode = diskDevice.readInode(fileDescriptor);
+    /**
+     * Reads the whole open file and decodes it as a string
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @return The contents of the file
+     * @throws IOException If the descriptor is not open or the disk cannot be read
+     */
+    public String read(int fileDescriptor) throws IOException {
+        long start = System.nanoTime();
+        Lock lock = lockForRead(fileDescriptor);
+        try {
+            INode inode = openFile(fileDescriptor, "FileSystem:read").getINode();
+            String contents = readString(inode);
+            metrics.record(Metrics.Metric.READ, start, Math.max(inode.getSize(), 0));
+            return contents;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    private String readString(INode inode) throws IOException {
         // Retrieve file size to determine the total number of bytes to read
         int fileSize = inode.getSize();
         if (fileSize <= 0) {
@@ -167,189 +640,1039 @@ public class FileSystem {
         // Calculate the number of blocks needed to read the file
         int numBlocks = (int) Math.ceil((double) fileSize / Disk.BLOCK_SIZE);
 
-        // Read the data blocks associated with the inode
-        StringBuilder fileContent = new StringBuilder();
-        int remainingBytes = fileSize;
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            // Get the block pointer for the current block
-            int blockPointer = inode.getBlockPointer(i);
-            if (blockPointer == -1) break; // No more valid block pointers
+        // Collect the blocks holding the file's data
+        int[] blocks = blockMap.lookup(inode, 0, numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            if (blocks[i] == -1) {
+                throw new IOException("FileSystem::read: missing block " + i + " of " + numBlocks);
+            }
+        }
 
-            // Read the data block from the disk
-            byte[] blockData = diskDevice.readDataBlock(blockPointer);
+        // Read the data blocks, one disk access per contiguous run of blocks
+        ByteBuffer fileContent = ByteBuffer.allocate(fileSize);
+        diskDevice.readDataBlocks(blocks, fileContent);
+        traceBlocks(Trace.Event.DATA_READ, inode.getFileName(), blocks, blocks.length);
 
-            // Determine how many bytes to read from this block
-            int bytesToRead = Math.min(remainingBytes, Disk.BLOCK_SIZE);
+        // Return the combined file content as a string
+        return new String(fileContent.array(), 0, fileSize);
+    }
+
+    /**
+     * Reads bytes of the open file, starting at byte <code>offset</code>,
+     * into <code>dst</code> until it is full or the end of the file is
+     * reached.  The bytes are copied straight from the data blocks without
+     * decoding.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param dst - buffer receiving the bytes
+     * @param offset - position in the file of the first byte read
+     * @return The number of bytes read, or -1 if <code>offset</code> is at or
+     *         past the end of the file
+     * @throws IOException If the descriptor is not the open file or the disk cannot be read
+     * @throws IllegalArgumentException If <code>offset</code> is negative
+     */
+    public int read(int fileDescriptor, ByteBuffer dst, long offset) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("FileSystem::read: negative offset " + offset);
+        }
 
-            // Append the block data to the file content
-            fileContent.append(new String(blockData, 0, bytesToRead));
+        long start = System.nanoTime();
+        Lock lock = lockForRead(fileDescriptor);
+        try {
+            int n = readBytes(openFile(fileDescriptor, "FileSystem::read").getINode(), dst, offset);
+            metrics.record(Metrics.Metric.READ, start, Math.max(n, 0));
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Reduce the remaining bytes to read
-            remainingBytes -= bytesToRead;
+    private int readBytes(INode inode, ByteBuffer dst, long offset) throws IOException {
+        int fileSize = Math.max(inode.getSize(), 0);
+        if (offset >= fileSize) {
+            return -1;
         }
 
-        // Return the combined file content as a string
-        return fileContent.toString();
+        int total = (int) Math.min(dst.remaining(), fileSize - offset);
+        int remaining = total;
+        int index = (int) (offset / Disk.BLOCK_SIZE);
+        int inBlock = (int) (offset % Disk.BLOCK_SIZE);
+
+        // A leading partial block is copied out of a single block read
+        if (inBlock != 0 && remaining > 0) {
+            int n = Math.min(Disk.BLOCK_SIZE - inBlock, remaining);
+            int[] block = blockMap.lookup(inode, index, 1);
+            dst.put(diskDevice.readDataBlock(block[0]), inBlock, n);
+            traceBlocks(Trace.Event.DATA_READ, inode.getFileName(), block, 1);
+            remaining -= n;
+            index++;
+        }
+
+        // The rest is block aligned and goes straight into dst
+        if (remaining > 0) {
+            int[] blocks = blockMap.lookup(inode, index, (remaining + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE);
+
+            ByteBuffer aligned = dst.duplicate();
+            aligned.limit(aligned.position() + remaining);
+            diskDevice.readDataBlocks(blocks, aligned);
+            traceBlocks(Trace.Event.DATA_READ, inode.getFileName(), blocks, blocks.length);
+            dst.position(dst.position() + remaining);
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads bytes of the open file into <code>dst</code> starting at the
+     * descriptor's position, and advances the position past them
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param dst - buffer receiving the bytes
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException If the descriptor is not open or the disk cannot be read
+     */
+    public int read(int fileDescriptor, ByteBuffer dst) throws IOException {
+        OpenFile file = openFile(fileDescriptor, "FileSystem::read");
+
+        synchronized (file) {
+            int n = read(fileDescriptor, dst, file.getPosition());
+            if (n > 0) {
+                file.setPosition(file.getPosition() + n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Returns a channel that reads the open file sequentially from the
+     * descriptor's position
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @return A channel over the file's contents
+     * @throws IOException If the descriptor is not open
+     */
+    public ReadableByteChannel newChannel(int fileDescriptor) throws IOException {
+        openFile(fileDescriptor, "FileSystem::newChannel");
+        return new FileReadChannel(this, fileDescriptor);
+    }
+
+    /**
+     * Returns a stream that reads the open file sequentially from the
+     * descriptor's position
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @return A stream over the file's contents
+     * @throws IOException If the descriptor is not open
+     */
+    public InputStream newInputStream(int fileDescriptor) throws IOException {
+        return Channels.newInputStream(newChannel(fileDescriptor));
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Replaces the contents of the open file with <code>data</code>.  The
+     * file's old blocks are released and enough blocks to hold the new
+     * contents are allocated from the free block list.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param data - new contents of the file
+     * @throws IOException If the descriptor is not open, the data does
+     *                     not fit in a file, or there are not enough free blocks
      */
    public void write(int fileDescriptor, String data) throws IOException {
-        if (fileDescriptor != this.iNodeNumber || this.iNodeForFile == null) {
-            throw new IOException("FileSystem::write: Invalid file descriptor or inode is null.");
+        long start = System.nanoTime();
+        Lock lock = lockForWrite(fileDescriptor);
+        try {
+            OpenFile file = openFile(fileDescriptor, "FileSystem::write");
+            replaceContents(file, data);
+            metrics.record(Metrics.Metric.WRITE, start, file.getINode().getSize());
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private void replaceContents(OpenFile file, String data) throws IOException {
+        int fileDescriptor = file.getINodeNumber();
+        INode inode = file.getINode();
 
         byte[] dataBytes = data.getBytes();
         int dataSize = dataBytes.length;
         int requiredBlocks = (int) Math.ceil((double) dataSize / Disk.BLOCK_SIZE);
 
-        // Deallocate existing blocks
-        deallocateBlocksForFile(this.iNodeNumber);
+        if (requiredBlocks > blockMap.maxFileBlocks()) {
+            throw new IOException("FileSystem::write: " + dataSize + " bytes exceeds the maximum file size of " +
+                    ((long) blockMap.maxFileBlocks() * Disk.BLOCK_SIZE) + " bytes");
+        }
 
-        // Allocate new blocks
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
-        int[] allocatedBlocks = new int[requiredBlocks];
-        int count = 0;
+        // Reject contents that cannot fit before the old blocks are released, from the free count alone
+        int metadataBlocks = blockMap.metadataBlocksFor(requiredBlocks);
+        int held = blocksFor(Math.max(inode.getSize(), 0));
+        long blocksAvailable = (long) freeList.getFreeBlockCount() +
+                ((journal == null) ? held + blockMap.metadataBlocksFor(held) : journal.pendingFreeCount());
+        if (requiredBlocks + metadataBlocks > blocksAvailable) {
+            throw blocksUnavailable(fileDescriptor, requiredBlocks + metadataBlocks);
+        }
+
+        // Allocate new blocks in place of the old ones, metadata blocks first so they sit just ahead
+        // of the data they map.  Blocks the inode cannot describe are refused before anything changes.
+        int[] oldBlocks = blockMap.heldBlocks(inode);
+        int[] allocatedBlocks = allocateReplacing(fileDescriptor, oldBlocks, requiredBlocks + metadataBlocks,
+                blocks -> blockMap.canAssign(inode, 0, Arrays.copyOfRange(blocks, metadataBlocks, blocks.length)));
+        int[] dataBlocks = Arrays.copyOfRange(allocatedBlocks, metadataBlocks, allocatedBlocks.length);
+        blockMap.release(inode);
+
+        // Update inode
+        assignBlocks(inode, 0, dataBlocks, Arrays.copyOf(allocatedBlocks, metadataBlocks));
+        inode.setSize(dataSize);
+
+        // Write data to allocated blocks, one disk access per contiguous run of blocks
+        diskDevice.writeDataBlocks(dataBlocks, ByteBuffer.wrap(dataBytes));
+        traceBlocks(Trace.Event.DATA_WRITE, inode.getFileName(), dataBlocks, dataBlocks.length);
+
+        // Write updates to disk
+        writeINode(inode, fileDescriptor);
+        file.setDirty(false);
+        freeReleasedBlocks(oldBlocks);
+
+    }
+
+    /**
+     * Writes <code>len</code> bytes of <code>buf</code> into the open file
+     * starting at byte <code>offset</code>.  Only the blocks covering the
+     * written range are touched; new blocks are allocated only when the
+     * write extends the file.  Writing past the end of the file fills the
+     * gap with zeros.  A grown inode is written back when the file is
+     * closed or synced.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param buf - data to write
+     * @param offset - position in the file of the first byte written
+     * @param len - number of bytes of <code>buf</code> to write
+     * @throws IOException If the descriptor is not open, the write would
+     *                     exceed the maximum file size, or there are not enough free blocks
+     * @throws IllegalArgumentException If <code>offset</code> or <code>len</code> is out of range
+     */
+    public void write(int fileDescriptor, byte[] buf, long offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || len > buf.length) {
+            throw new IllegalArgumentException("FileSystem::write: invalid offset " + offset +
+                    " or length " + len + " for a buffer of " + buf.length + " bytes");
+        }
+
+        long start = System.nanoTime();
+        Lock lock = lockForWrite(fileDescriptor);
+        try {
+            writeBytes(openFile(fileDescriptor, "FileSystem::write"), buf, offset, len);
+            metrics.record(Metrics.Metric.WRITE, start, len);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends <code>len</code> bytes of <code>buf</code> to the end of the
+     * open file
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param buf - data to append
+     * @param len - number of bytes of <code>buf</code> to append
+     * @throws IOException If the descriptor is not open, the file would
+     *                     exceed the maximum file size, or there are not enough free blocks
+     */
+    public void append(int fileDescriptor, byte[] buf, int len) throws IOException {
+        if (len < 0 || len > buf.length) {
+            throw new IllegalArgumentException("FileSystem::append: invalid length " + len +
+                    " for a buffer of " + buf.length + " bytes");
+        }
 
-        for (int i = 0; i < Disk.NUM_BLOCKS && count < requiredBlocks; i++) {
-            if ((freeBlockList[i / 8] & (1 << (i % 8))) == 0) { // Block is free
-                allocatedBlocks[count++] = i;
-                freeBlockList[i / 8] |= (1 << (i % 8)); // Mark block as used
+        // The end of file is read under the same lock as the write so appends do not overlap
+        long start = System.nanoTime();
+        Lock lock = lockForWrite(fileDescriptor);
+        try {
+            OpenFile file = openFile(fileDescriptor, "FileSystem::append");
+            writeBytes(file, buf, Math.max(file.getINode().getSize(), 0), len);
+            metrics.record(Metrics.Metric.WRITE, start, len);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBytes(OpenFile file, byte[] buf, long offset, int len) throws IOException {
+        BlockWrite write = prepareWrite(file, buf, offset, len);
+        if (write != null) {
+            try {
+                diskDevice.writeDataBlocks(write.blocks, write.data);
+            } catch (IOException | RuntimeException e) {
+                abandonWrite(file.getINodeNumber(), write);
+                throw e;
             }
+            traceBlocks(Trace.Event.DATA_WRITE, file.getINode().getFileName(), write.blocks, write.blocks.length);
+            finishWrite(file, write, offset + len);
         }
+    }
 
-        if (count < requiredBlocks) {
-            throw new IOException("FileSystem::allocateBlocksForFile: Number of blocks is unavailable!");
+    /**
+     * Does the work of a write short of writing the data: allocates blocks
+     * for the part of the file that is new, and builds the block contents,
+     * reading the existing bytes of partially written blocks.  The new
+     * blocks are not given to the inode yet: the caller passes the write to
+     * <code>finishWrite</code> once the data is written, or to
+     * <code>abandonWrite</code> if it cannot be, so a failed write leaves no
+     * blocks past the end of the file.
+     *
+     * @return The blocks to write and their new contents, or null if
+     *         <code>len</code> is zero
+     */
+    private BlockWrite prepareWrite(OpenFile file, byte[] buf, long offset, int len) throws IOException {
+        int fileDescriptor = file.getINodeNumber();
+
+        long end = offset + len;
+        if (end > (long) blockMap.maxFileBlocks() * Disk.BLOCK_SIZE) {
+            throw new IOException("FileSystem::write: " + end + " bytes exceeds the maximum file size of " +
+                    ((long) blockMap.maxFileBlocks() * Disk.BLOCK_SIZE) + " bytes");
+        }
+        if (len == 0) {
+            return null;
         }
 
-        // Write data to allocated blocks
-        for (int i = 0; i < allocatedBlocks.length; i++) {
-            byte[] blockData = new byte[Disk.BLOCK_SIZE];
-            int start = i * Disk.BLOCK_SIZE;
-            int length = Math.min(dataSize - start, Disk.BLOCK_SIZE);
-            System.arraycopy(dataBytes, start, blockData, 0, length);
-            diskDevice.writeDataBlock(blockData, allocatedBlocks[i]);
+        INode inode = file.getINode();
+        int oldSize = Math.max(inode.getSize(), 0);
+        int oldBlocks = (int) Math.ceil((double) oldSize / Disk.BLOCK_SIZE);
+        int newBlocks = Math.max(oldBlocks, (int) Math.ceil((double) end / Disk.BLOCK_SIZE));
+
+        // Allocate blocks only for the part of the file that is new
+        int[] added = new int[0];
+        int metadataBlocks = 0;
+        if (newBlocks > oldBlocks) {
+            metadataBlocks = blockMap.metadataBlocksFor(newBlocks) - blockMap.metadataBlocksFor(oldBlocks);
+            int skipped = metadataBlocks;
+            added = allocateBlocksForFile(fileDescriptor, (newBlocks - oldBlocks) + metadataBlocks,
+                    blocks -> blockMap.canAssign(inode, oldBlocks, Arrays.copyOfRange(blocks, skipped, blocks.length)));
         }
+        BlockWrite write = new BlockWrite(oldBlocks, added, metadataBlocks);
+
+        try {
+            // The written range starts at the old end of file when there is a gap to zero
+            long start = Math.min(offset, oldSize);
+            int firstIndex = (int) (start / Disk.BLOCK_SIZE);
+            int lastIndex = (int) ((end - 1) / Disk.BLOCK_SIZE);
+
+            // Blocks the file has are looked up; the rest are the new ones
+            int[] blocks = new int[lastIndex - firstIndex + 1];
+            int existing = Math.min(lastIndex + 1, oldBlocks) - firstIndex;
+            System.arraycopy(blockMap.lookup(inode, firstIndex, existing), 0, blocks, 0, existing);
+            System.arraycopy(added, metadataBlocks, blocks, existing, blocks.length - existing);
+            byte[] data = new byte[blocks.length * Disk.BLOCK_SIZE];
+
+            // Keep the existing bytes of partially written blocks
+            if (firstIndex < oldBlocks && start % Disk.BLOCK_SIZE != 0) {
+                System.arraycopy(diskDevice.readDataBlock(blocks[0]), 0, data, 0, Disk.BLOCK_SIZE);
+            }
+            if (lastIndex < oldBlocks && end < oldSize && end % Disk.BLOCK_SIZE != 0
+                    && (lastIndex != firstIndex || start % Disk.BLOCK_SIZE == 0)) {
+                System.arraycopy(diskDevice.readDataBlock(blocks[blocks.length - 1]), 0,
+                        data, data.length - Disk.BLOCK_SIZE, Disk.BLOCK_SIZE);
+            }
 
-        // Update inode
-        for (int i = 0; i < allocatedBlocks.length; i++) {
-            this.iNodeForFile.setBlockPointer(i, allocatedBlocks[i]);
+            int dataStart = (int) (start - ((long) firstIndex * Disk.BLOCK_SIZE));
+            int writeStart = (int) (offset - ((long) firstIndex * Disk.BLOCK_SIZE));
+            Arrays.fill(data, dataStart, writeStart, (byte) 0);
+            System.arraycopy(buf, 0, data, writeStart, len);
+
+            write.blocks = blocks;
+            write.data = ByteBuffer.wrap(data);
+            return write;
+        } catch (IOException | RuntimeException e) {
+            abandonWrite(fileDescriptor, write);
+            throw e;
         }
-        this.iNodeForFile.setSize(dataSize);
+    }
 
-        // Write updates to disk
-        diskDevice.writeFreeBlockList(freeBlockList);
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
+    /**
+     * Gives the file the blocks allocated by <code>prepareWrite</code>,
+     * once the data has been written, and grows it to <code>end</code>
+     * bytes
+     */
+    private void finishWrite(OpenFile file, BlockWrite write, long end) throws IOException {
+        if (write.added.length > 0) {
+            assignBlocks(file.getINode(), write.firstAdded,
+                    Arrays.copyOfRange(write.added, write.metadataBlocks, write.added.length),
+                    Arrays.copyOf(write.added, write.metadataBlocks));
+        }
+        extendTo(file, end);
+    }
 
+    /**
+     * Frees the blocks allocated by <code>prepareWrite</code> for a write
+     * that failed.  No inode points at them yet, so they are freed at once
+     * even on a journaled disk.
+     */
+    private void abandonWrite(int iNodeNumber, BlockWrite write) {
+        traceDeallocation(iNodeNumber, write.added);
+        if (freeList.free(write.added) > 0) {
+            freeListDirty = true;
+        }
     }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Grows the open file to <code>end</code> bytes if it is shorter.  The
+     * inode changes only when the file grows.
      */
+    private void extendTo(OpenFile file, long end) {
+        if (end > Math.max(file.getINode().getSize(), 0)) {
+            file.getINode().setSize((int) end);
+            file.setDirty(true);
+        }
+    }
 
-    private int[] allocateBlocksForFile(int iNodeNumber, int numBytes)
+    /**
+     * Reads bytes of the open file like <code>read(int, ByteBuffer, long)</code>
+     * without waiting for the data blocks.  The blocks are looked up on the
+     * calling thread and read with <code>Disk.readDataBlocksAsync</code>, so
+     * many reads can be in flight at once.  <code>dst</code> must not be
+     * used until the returned future completes.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param dst - buffer receiving the bytes
+     * @param offset - position in the file of the first byte read
+     * @return A future completing with the number of bytes read, or -1 if
+     *         <code>offset</code> is at or past the end of the file
+     * @throws IOException If the descriptor is not open or the blocks cannot be looked up
+     * @throws IllegalArgumentException If <code>offset</code> is negative
+     */
+    public CompletableFuture<Integer> readAsync(int fileDescriptor, ByteBuffer dst, long offset) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("FileSystem::readAsync: negative offset " + offset);
+        }
 
-            throws IOException {
-        int blocksNeeded = (int) Math.ceil((double) numBytes / Disk.BLOCK_SIZE);
-        int[] allocatedBlocks = new int[blocksNeeded];
-        int blocksAllocated = 0;
+        long start = System.nanoTime();
+        Lock lock = lockForRead(fileDescriptor);
+        try {
+            INode inode = openFile(fileDescriptor, "FileSystem::readAsync").getINode();
+            int fileSize = Math.max(inode.getSize(), 0);
+            if (offset >= fileSize) {
+                return CompletableFuture.completedFuture(-1);
+            }
 
-        // Read from the freeblocklist to view vacancies
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
-        FreeBlockList freeListManager = new FreeBlockList();
-        freeListManager.setFreeBlockList(freeBlockList);
+            int total = (int) Math.min(dst.remaining(), fileSize - offset);
+            int inBlock = (int) (offset % Disk.BLOCK_SIZE);
+            int[] blocks = blockMap.lookup(inode, (int) (offset / Disk.BLOCK_SIZE), blocksFor(inBlock + total));
+
+            // Block-aligned reads go straight into dst; others are read whole and copied out
+            ByteBuffer target;
+            if (inBlock == 0) {
+                target = dst.duplicate();
+                target.limit(target.position() + total);
+            } else {
+                target = ByteBuffer.allocate(inBlock + total);
+            }
 
-        //add counter of free blocks and unavailable blocks???
-        // Allocate blocks
-        for (int i = 0; i < Disk.NUM_BLOCKS && blocksAllocated < blocksNeeded; i++) {
-            // Check if the block is free
-            int blockNum = i / 8;
-            int offset = i % 8;
-            if ((freeBlockList[blockNum] & (1 << offset)) == 0) { // Block is free
-                freeListManager.allocateBlock(i);
-                allocatedBlocks[blocksAllocated++] = i;
+            beginAsyncIO(fileDescriptor, false);
+            CompletableFuture<Void> io;
+            try {
+                io = diskDevice.readDataBlocksAsync(blocks, target);
+                traceBlocks(Trace.Event.DATA_READ, inode.getFileName(), blocks, blocks.length);
+            } catch (IOException | RuntimeException e) {
+                endAsyncIO(fileDescriptor, false);
+                throw e;
             }
+
+            return io.whenComplete((ignored, e) -> endAsyncIO(fileDescriptor, false))
+                    .thenApply(ignored -> {
+                        if (inBlock == 0) {
+                            dst.position(dst.position() + total);
+                        } else {
+                            dst.put(target.array(), inBlock, total);
+                        }
+                        metrics.record(Metrics.Metric.READ, start, total);
+                        return total;
+                    });
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Writes bytes into the open file like <code>write(int, byte[], long, int)</code>
+     * without waiting for the data blocks.  Blocks are allocated and the
+     * file grown on the calling thread; the data is written with
+     * <code>Disk.writeDataBlocksAsync</code>.  <code>buf</code> is copied
+     * before returning and may be reused at once.  Other operations on the
+     * file wait for the write to complete, and the file's inode does not
+     * reach the disk before its data.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param buf - data to write
+     * @param offset - position in the file of the first byte written
+     * @param len - number of bytes of <code>buf</code> to write
+     * @return A future completing once the data has been written
+     * @throws IOException If the descriptor is not open, the write would
+     *                     exceed the maximum file size, or there are not enough free blocks
+     * @throws IllegalArgumentException If <code>offset</code> or <code>len</code> is out of range
+     */
+    public CompletableFuture<Void> writeAsync(int fileDescriptor, byte[] buf, long offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || len > buf.length) {
+            throw new IllegalArgumentException("FileSystem::writeAsync: invalid offset " + offset +
+                    " or length " + len + " for a buffer of " + buf.length + " bytes");
+        }
+
+        long start = System.nanoTime();
+        Lock lock = lockForWrite(fileDescriptor);
+        try {
+            OpenFile file = openFile(fileDescriptor, "FileSystem::writeAsync");
+            BlockWrite write = prepareWrite(file, buf, offset, len);
+            if (write == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            beginAsyncIO(fileDescriptor, true);
+            CompletableFuture<Void> io;
+            try {
+                io = diskDevice.writeDataBlocksAsync(write.blocks, write.data);
+                traceBlocks(Trace.Event.DATA_WRITE, file.getINode().getFileName(), write.blocks, write.blocks.length);
+            } catch (IOException | RuntimeException e) {
+                endAsyncIO(fileDescriptor, true);
+                abandonWrite(fileDescriptor, write);
+                throw e;
+            }
+
+            // Readers and the inode write-back wait for the data, so the file can grow now
+            finishWrite(file, write, offset + len);
+            return io.whenComplete((ignored, e) -> {
+                endAsyncIO(fileDescriptor, true);
+                if (e == null) {
+                    metrics.record(Metrics.Metric.WRITE, start, len);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends <code>data</code> to the end of the open file
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param data - data to append
+     * @throws IOException If the descriptor is not open, the file would
+     *                     exceed the maximum file size, or there are not enough free blocks
+     */
+    public void append(int fileDescriptor, String data) throws IOException {
+        byte[] dataBytes = data.getBytes();
+        append(fileDescriptor, dataBytes, dataBytes.length);
+    }
+
+    /**
+     * Allocates <code>blocksNeeded</code> free blocks from the in-memory
+     * free block list, in the allocation group of the file's inode where it
+     * has room.  The blocks are laid out contiguously where the free list
+     * allows, so the file reads back sequentially.  The caller is
+     * responsible for storing the returned blocks in the inode.
+     *
+     * @param iNodeNumber - inode of the file the blocks are for
+     * @param blocksNeeded - number of data and indirect blocks needed
+     * @param accept - tests whether the file's inode can describe the blocks
+     * @return The allocated block numbers
+     * @throws IOException If there are not enough free blocks, or none the inode can describe
+     */
+
+    private int[] allocateBlocksForFile(int iNodeNumber, int blocksNeeded, Predicate<int[]> accept)
+
+            throws IOException {
+        return allocateReplacing(iNodeNumber, new int[0], blocksNeeded, accept);
+    }
 
-        // checking the correct number of blocks has been allocated, printing a statement if blocks unavailable
-        if (blocksAllocated < blocksNeeded) {
-            System.out.println("Space Needed: " + blocksNeeded);
-            System.out.println("Space Available: " + blocksAllocated);
-            throw new IOException("FileSystem::allocateBlocksForFile: Number of blocks is unavailable!");
 
-            //System.out.println("Insufficient space available.");
+    /**
+     * Allocates <code>blocksNeeded</code> blocks for a file that gives up
+     * <code>oldBlocks</code>, which the new blocks may reuse.  If there is no
+     * room, or <code>accept</code> rejects the blocks, nothing is changed and
+     * the old blocks stay allocated, so the file is left as it was.  The
+     * caller then clears the inode's old block pointers.
+     *
+     * On a journaled disk the old blocks are not reused: the committed inode
+     * may still point at them, so they are freed by
+     * <code>freeReleasedBlocks</code> once the new inode commits.  If there
+     * is no room, blocks waiting for a commit are freed by committing and
+     * the allocation is tried again.
+     *
+     * @param iNodeNumber - inode of the file the blocks are for
+     * @param oldBlocks - every block the file holds now
+     * @param blocksNeeded - number of data and metadata blocks needed
+     * @param accept - tests whether the file's inode can describe the blocks
+     * @return The allocated block numbers
+     * @throws IOException If there are not enough free blocks, or none the inode can describe
+     */
+    private int[] allocateReplacing(int iNodeNumber, int[] oldBlocks, int blocksNeeded, Predicate<int[]> accept)
+            throws IOException {
+        return allocateReplacing(new int[]{iNodeNumber}, new int[][]{oldBlocks}, new int[]{blocksNeeded},
+                (file, blocks) -> accept.test(blocks))[0];
+    }
+
+    /**
+     * Allocates blocks for several files at once as
+     * <code>allocateReplacing</code> does for one, each file's blocks in the
+     * group of its inode.  Either every file gets its blocks or nothing is
+     * changed.
+     *
+     * @param iNodeNumbers - inode of each file
+     * @param oldBlocks - every block each file holds now
+     * @param blocksNeeded - number of data and metadata blocks each file needs
+     * @param accept - tests whether the inode of the file at an index can describe its blocks
+     * @return The allocated block numbers of each file
+     * @throws IOException If there are not enough free blocks, or none the inodes can describe
+     */
+    private int[][] allocateReplacing(int[] iNodeNumbers, int[][] oldBlocks, int[] blocksNeeded,
+                                      BiPredicate<Integer, int[]> accept) throws IOException {
+        int[][] reused = (journal == null) ? oldBlocks : new int[oldBlocks.length][0];
+        int[] groups = new int[iNodeNumbers.length];
+        long needed = 0;
+        long reusable = 0;
+
+        for (int i = 0; i < iNodeNumbers.length; i++) {
+            groups[i] = Disk.groupOfInode(iNodeNumbers[i]);
+            traceDeallocation(iNodeNumbers[i], oldBlocks[i]);
+            needed += blocksNeeded[i];
+            reusable += reused[i].length;
         }
 
-        // Update the free block list on disk
-        diskDevice.writeFreeBlockList(freeListManager.getFreeBlockList());
+        int[][] allocated = freeList.replaceContiguous(reused, blocksNeeded, groups, accept);
+        if (allocated == null && journal != null && journal.pendingFreeCount() > 0) {
+            journal.commit();
+            allocated = freeList.replaceContiguous(reused, blocksNeeded, groups, accept);
+        }
 
-        // Update the block pointers in the INode with new allocated blocks
-        INode fileINode = diskDevice.readInode(iNodeNumber);
-        for (int j = 0; j < blocksAllocated; j++) {
-            fileINode.setBlockPointer(j, allocatedBlocks[j]);
+        if (allocated == null) {
+            long total = needed;
+            if (freeList.getFreeBlockCount() + reusable < needed) {
+                throw blocksUnavailable(iNodeNumbers[0], (int) needed);
+            }
+            trace.log(Trace.Level.WARN, Trace.Event.ALLOCATE_FAILED, () -> "inode " + iNodeNumbers[0] +
+                    (iNodeNumbers.length > 1 ? " and " + (iNodeNumbers.length - 1) + " more" : "") +
+                    " cannot describe " + total + " blocks in the free space left");
+            throw new IOException("FileSystem::allocateBlocksForFile: free space is too fragmented for " +
+                    needed + " blocks");
+        }
+        for (int i = 0; i < iNodeNumbers.length; i++) {
+            int iNodeNumber = iNodeNumbers[i];
+            int[] blocks = allocated[i];
+            trace.log(Trace.Level.INFO, Trace.Event.ALLOCATE, () -> "inode " + iNodeNumber + ": " +
+                    describeBlocks(blocks, blocks.length));
         }
 
-        // writing to disk the updated filesize for inode
-        fileINode.setSize(numBytes);
-        diskDevice.writeInode(fileINode, iNodeNumber);
+        // The free block list reaches the disk at the next sync
+        freeListDirty = true;
 
-        return allocatedBlocks;
+        return allocated;
+    }
+
+    /**
+     * Chooses the inode of a new file: the first free inode of the group
+     * with the most free blocks, looking from the group after the previous
+     * new file's.  Files created one after another thus start in different
+     * groups, where their data can be allocated in parallel and grow
+     * without meeting.  The caller holds the namespace lock.
+     *
+     * @param unused - the inodes that are free to choose
+     * @return A free inode number, or -1 if there is none
+     */
+    private int chooseINode(BitSet unused) {
+        int chosen = -1;
+        int mostFree = -1;
+
+        for (int i = 0; i < Disk.NUM_GROUPS; i++) {
+            int group = (nextGroup + i) % Disk.NUM_GROUPS;
+            int first = group * Disk.INODES_PER_GROUP;
+            int inode = unused.nextSetBit(first);
+            if (inode < 0 || inode >= first + Disk.INODES_PER_GROUP) {
+                continue;
+            }
 
+            int free = freeList.freeBlocksInGroup(group);
+            if (free > mostFree) {
+                chosen = inode;
+                mostFree = free;
+            }
+        }
+
+        if (chosen >= 0) {
+            nextGroup = (Disk.groupOfInode(chosen) + 1) % Disk.NUM_GROUPS;
+        }
+        return chosen;
     }
 
+    /**
+     * Traces an allocation that cannot be satisfied and returns the
+     * exception reporting it
+     *
+     * @param iNodeNumber - inode of the file the blocks are for
+     * @param blocksNeeded - number of blocks the file needs
+     * @return The exception to throw
+     */
+    private IOException blocksUnavailable(int iNodeNumber, int blocksNeeded) {
+        trace.log(Trace.Level.WARN, Trace.Event.ALLOCATE_FAILED, () -> "inode " + iNodeNumber + " needs " +
+                blocksNeeded + " blocks, " + freeList.getFreeBlockCount() + " free");
+        return new IOException("FileSystem::allocateBlocksForFile: Number of blocks is unavailable!");
+    }
 
     /**
-     * Add your Javadoc documentation for this method
+     * Records newly allocated blocks in the inode.  If the inode cannot
+     * describe them, e.g. a file that would need too many extents, the
+     * blocks are returned to the free block list.
+     *
+     * @param inode - the file's inode
+     * @param first - index in the file of the first new block
+     * @param dataBlocks - newly allocated data blocks
+     * @param metadataBlocks - newly allocated metadata blocks
+     * @throws IOException If the blocks cannot be recorded
      */
-  private void deallocateBlocksForFile(int iNodeNumber) throws IOException {
+    private void assignBlocks(INode inode, int first, int[] dataBlocks, int[] metadataBlocks) throws IOException {
+        try {
+            blockMap.assign(inode, first, dataBlocks, metadataBlocks);
+        } catch (IOException e) {
+            freeList.free(dataBlocks);
+            freeList.free(metadataBlocks);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns every block held by <code>inode</code>, including its indirect
+     * blocks, to the in-memory free block list and clears the inode's block
+     * pointers.  The caller writes the inode back and then passes the blocks
+     * to <code>freeReleasedBlocks</code>; on a journaled disk they are only
+     * freed then.
+     *
+     * @param iNodeNumber - number of the inode whose blocks are released
+     * @param inode - the inode whose blocks are released
+     * @return the blocks released
+     * @throws IOException If the inode number is invalid
+     */
+  private int[] deallocateBlocksForFile(int iNodeNumber, INode inode) throws IOException {
         // Validate the inode number
         if (iNodeNumber < 0 || iNodeNumber >= Disk.NUM_INODES) {
             throw new IOException("FileSystem::deallocateBlocksForFile: Invalid inode number: " + iNodeNumber);
         }
 
-        // Read the inode from the disk
-        INode inode = diskDevice.readInode(iNodeNumber);
-        if (inode == null) {
-            throw new IOException("FileSystem::deallocateBlocksForFile: Inode is null for inode number: " + iNodeNumber);
+        // Collect the inode's data and indirect blocks, clearing its block pointers
+        int[] blocks = blockMap.release(inode);
+        traceDeallocation(iNodeNumber, blocks);
+
+        if (journal == null && freeList.free(blocks) > 0) {
+            freeListDirty = true;
+        }
+        return blocks;
+    }
+
+    /**
+     * Frees blocks a file has given up, once the inode that no longer points
+     * at them has been written.  On a journaled disk they are freed when
+     * that inode's transaction commits, so they are not reused while the
+     * committed inode still points at them.  Without a journal they were
+     * freed when they were released.
+     *
+     * @param blocks - blocks the file gave up
+     */
+    private void freeReleasedBlocks(int[] blocks) {
+        if (journal != null) {
+            journal.freeAfterCommit(blocks);
+        }
+    }
+
+    /**
+     * Traces each block a file gives up, before it is freed
+     */
+    private void traceDeallocation(int iNodeNumber, int[] blocks) {
+        if (trace.isEnabled(Trace.Level.WARN)) {
+            for (int blockNumber : blocks) {
+                if (freeList.isBlockAllocated(blockNumber)) {
+                    trace.log(Trace.Level.DEBUG, Trace.Event.DEALLOCATE,
+                            () -> "inode " + iNodeNumber + ": block " + blockNumber);
+                } else {
+                    trace.log(Trace.Level.WARN, Trace.Event.ALREADY_FREE,
+                            () -> "inode " + iNodeNumber + ": block " + blockNumber + " is already free");
+                }
+            }
+        }
+    }
+    // You may add any private method after this comment
+
+    /**
+     * Looks up an open file by descriptor.  Callers that go on to use the
+     * file look it up after taking its inode lock, so a file closed or
+     * deleted while they waited is rejected.
+     *
+     * @param fileDescriptor - descriptor of the open file
+     * @param caller - name used in the exception message
+     * @return The open file table entry
+     * @throws IOException If the descriptor is not open
+     */
+    private OpenFile openFile(int fileDescriptor, String caller) throws IOException {
+        OpenFile file = openFiles.get(fileDescriptor);
+        if (file == null) {
+            throw new IOException(caller + ": Invalid file descriptor " + fileDescriptor);
+        }
+        return file;
+    }
+
+    /**
+     * Writes the inode of an open file to disk if it has unwritten changes.
+     * Nothing is written if the file is no longer in the open file table:
+     * <code>sync</code> reads the table without the namespace lock, so the
+     * file may have been deleted and its inode reused by a new file while
+     * this waited for the inode lock.
+     *
+     * @param file - open file table entry
+     * @throws IOException If disk is not accessible for writing
+     */
+    private void writeBackINode(OpenFile file) throws IOException {
+        Lock lock = lockForWrite(file.getINodeNumber());
+        try {
+            if (file.isDirty() && openFiles.get(file.getINodeNumber()) == file) {
+                writeINode(file.getINode(), file.getINodeNumber());
+                file.setDirty(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes an inode to disk, or to the open journal transaction, and to
+     * the in-memory inode table.  The caller holds the inode's write lock.
+     *
+     * @param inode - new contents of the inode
+     * @param iNodeNumber - inode number
+     * @throws IOException If disk is not accessible for writing
+     */
+    private void writeINode(INode inode, int iNodeNumber) throws IOException {
+        if (journal != null) {
+            journal.logInode(iNodeNumber, inode);
+        } else {
+            diskDevice.writeInode(inode, iNodeNumber);
         }
+        inodeTable.setINode(iNodeNumber, inode);
+        trace.log(Trace.Level.DEBUG, Trace.Event.INODE_WRITE,
+                () -> "inode " + iNodeNumber + " (" + inode.getFileName() + ")");
+    }
 
-        // Read the free block list from the disk
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
+    /**
+     * Traces a data read or write of the first <code>count</code> of
+     * <code>blocks</code>, building nothing unless I/O is traced
+     */
+    private void traceBlocks(Trace.Event event, String fileName, int[] blocks, int count) {
+        if (trace.isEnabled(Trace.Level.DEBUG)) {
+            trace.log(Trace.Level.DEBUG, event, () -> fileName + ": " + describeBlocks(blocks, count));
+        }
+    }
 
-        // Iterate over the inode's block pointers
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockNumber = inode.getBlockPointer(i);
-            if (blockNumber == -1) {
-                // No more blocks allocated to this file, exit loop
-                break;
+    /**
+     * Describes blocks as their count and contiguous runs, e.g. "5 blocks 10-12,20-21"
+     */
+    private static String describeBlocks(int[] blocks, int count) {
+        StringBuilder runs = new StringBuilder(count + " blocks");
+        for (int i = 0; i < count; ) {
+            int j = i + 1;
+            while (j < count && blocks[j] == blocks[j - 1] + 1) {
+                j++;
             }
+            runs.append(i == 0 ? " " : ",").append(blocks[i]);
+            if (j - i > 1) {
+                runs.append('-').append(blocks[j - 1]);
+            }
+            i = j;
+        }
+        return runs.toString();
+    }
 
-            // Calculate the byte index and bit index for the block
-            int byteIndex = blockNumber / 8;
-            int bitIndex = blockNumber % 8;
+    /**
+     * Returns the lock guarding an inode
+     *
+     * @param iNodeNumber - inode number
+     * @return The read/write lock of the inode's stripe
+     */
+    private ReentrantReadWriteLock lockFor(int iNodeNumber) {
+        return inodeLocks[Math.floorMod(iNodeNumber, LOCK_STRIPES)];
+    }
 
-            // Check if the block is already free
-            if ((freeBlockList[byteIndex] & (1 << bitIndex)) == 0) {
-                // Block is already free; log the event and continue
-                System.out.println("Block " + blockNumber + " is already free.");
-                continue;
+    /**
+     * Takes the write lock of an inode, then waits for asynchronous reads
+     * and writes started under its stripe to finish
+     *
+     * @param iNodeNumber - inode number
+     * @return The lock, held by the caller
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private Lock lockForWrite(int iNodeNumber) throws InterruptedIOException {
+        return lockAndAwait(lockFor(iNodeNumber).writeLock(), iNodeNumber, true);
+    }
+
+    /**
+     * Takes the read lock of an inode, then waits for asynchronous writes
+     * started under its stripe to finish
+     *
+     * @param iNodeNumber - inode number
+     * @return The lock, held by the caller
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private Lock lockForRead(int iNodeNumber) throws InterruptedIOException {
+        return lockAndAwait(lockFor(iNodeNumber).readLock(), iNodeNumber, false);
+    }
+
+    private Lock lockAndAwait(Lock lock, int iNodeNumber, boolean awaitReads) throws InterruptedIOException {
+        lock.lock();
+        try {
+            awaitAsyncIO(Math.floorMod(iNodeNumber, LOCK_STRIPES), awaitReads);
+        } catch (InterruptedIOException e) {
+            lock.unlock();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Records an asynchronous data transfer started under the lock of an
+     * inode.  The inode lock cannot be held until the transfer completes,
+     * as it belongs to the thread that took it, so the transfer is counted
+     * against the stripe instead and later lockers wait for it.
+     *
+     * @param iNodeNumber - inode number
+     * @param write - true for a write, false for a read
+     */
+    private void beginAsyncIO(int iNodeNumber, boolean write) {
+        int stripe = Math.floorMod(iNodeNumber, LOCK_STRIPES);
+        synchronized (asyncIO) {
+            if (write) {
+                asyncWrites[stripe]++;
+            } else {
+                asyncReads[stripe]++;
+            }
+        }
+    }
+
+    /**
+     * Records the completion of a transfer counted by <code>beginAsyncIO</code>
+     */
+    private void endAsyncIO(int iNodeNumber, boolean write) {
+        int stripe = Math.floorMod(iNodeNumber, LOCK_STRIPES);
+        synchronized (asyncIO) {
+            if (write) {
+                asyncWrites[stripe]--;
+            } else {
+                asyncReads[stripe]--;
+            }
+            asyncIO.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until no asynchronous write, and if <code>awaitReads</code> no
+     * asynchronous read, is in flight under a lock stripe.  The caller holds
+     * the stripe's lock, so no new transfer can start meanwhile.
+     *
+     * @param stripe - lock stripe
+     * @param awaitReads - true to wait for reads as well as writes
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private void awaitAsyncIO(int stripe, boolean awaitReads) throws InterruptedIOException {
+        synchronized (asyncIO) {
+            while (asyncWrites[stripe] > 0 || (awaitReads && asyncReads[stripe] > 0)) {
+                try {
+                    asyncIO.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("FileSystem: interrupted waiting for asynchronous I/O");
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads the inode list in one go and records every named inode in the
+     * directory and every unnamed inode in the free inode set
+     *
+     * @throws IOException If the inode list cannot be read, or a file's
+     *                     inode does not agree with the free block list
+     */
+    private void buildDirectoryIndex() throws IOException {
+        inodeTable = diskDevice.readINodeTable();
+        directory = new HashMap<>();
+        freeINodes = new BitSet(Disk.NUM_INODES);
+
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            if (!inodeTable.isInUse(i)) {
+                freeINodes.set(i);
+            } else {
+                checkINode(i);
+                directory.put(inodeTable.getFileName(i).trim(), i);
             }
+        }
+    }
 
-            // Deallocate the block by clearing its bit
-            freeBlockList[byteIndex] &= ~(1 << bitIndex);
+    /**
+     * Checks that a file's size fits its inode and that every block it
+     * points to is a valid, allocated block
+     *
+     * @param iNodeNumber - inode number
+     * @throws IOException If the inode is inconsistent
+     */
+    private void checkINode(int iNodeNumber) throws IOException {
+        int size = inodeTable.getSize(iNodeNumber);
+        if (size < -1 || size > (long) blockMap.maxFileBlocks() * Disk.BLOCK_SIZE) {
+            throw new IOException("FileSystem::mount: inode " + iNodeNumber + " has invalid size " + size);
+        }
 
-            // Clear the block pointer in the inode
-            inode.setBlockPointer(i, -1);
+        for (int block : blockMap.inodeBlocks(inodeTable.getINode(iNodeNumber))) {
+            if (block < 0 || block >= Disk.NUM_BLOCKS || !freeList.isBlockAllocated(block)) {
+                throw new IOException("FileSystem::mount: inode " + iNodeNumber +
+                        " points to invalid or free block " + block);
+            }
+        }
+    }
 
-            // Log the deallocation
-            System.out.println("Block " + blockNumber + " deallocated successfully.");
+    /**
+     * Returns the number of blocks needed to hold <code>numBytes</code> bytes
+     */
+    private static int blocksFor(long numBytes) {
+        return (int) ((numBytes + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Data blocks of a file and their new contents, and the blocks
+     * allocated for the part of the file that is new
+     */
+    private static final class BlockWrite {
+        final int firstAdded;
+        final int[] added;
+        final int metadataBlocks;
+        int[] blocks;
+        ByteBuffer data;
+
+        BlockWrite(int firstAdded, int[] added, int metadataBlocks) {
+            this.firstAdded = firstAdded;
+            this.added = added;
+            this.metadataBlocks = metadataBlocks;
         }
+    }
 
-        // Write the updated free block list and inode back to the disk
-        diskDevice.writeFreeBlockList(freeBlockList);
-        diskDevice.writeInode(inode, iNodeNumber);
+    /**
+     * What a batch leaves behind for one file
+     */
+    private static final class BatchFile {
+        Integer iNodeNumber;
+        boolean created;
+        boolean exists;
+        INode inode;
+
+        /**
+         * New contents of the file, or null if it is not written
+         */
+        byte[] data;
+        int[] blocks;
+
+        BatchFile(Integer iNodeNumber) {
+            this.iNodeNumber = iNodeNumber;
+            this.exists = iNodeNumber != null;
+        }
     }
-    // You may add any private method after this comment
 
 }
@@ -0,0 +1,196 @@
+package filesystem;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSystemStressTest {
+    private static final int FILES_PER_THREAD = 32;
+    private static final int READS_PER_FILE = 50;
+    private static final int RECREATES_PER_THREAD = 500;
+
+    private static int threadCount() {
+        return Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static String contents(int thread, int file) {
+        return ("thread " + thread + " file " + file + " ").repeat(20 + file);
+    }
+
+    /**
+     * Runs <code>task</code> on <code>threads</code> threads at once,
+     * rethrowing any failure
+     */
+    private static void runConcurrently(int threads, ThreadTask task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                tasks.add(() -> {
+                    task.run(thread);
+                    return null;
+                });
+            }
+
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws IOException;
+    }
+
+    @Test
+    void concurrentCreateWriteReadDeleteKeepsFilesIntact() throws Exception {
+        FileSystem fs = new FileSystem(new MappedDisk());
+        int threads = threadCount();
+
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < FILES_PER_THREAD; i++) {
+                int fd = fs.create("t" + thread + "-f" + i);
+                fs.write(fd, contents(thread, i));
+                fs.append(fd, "!");
+                fs.close(fd);
+            }
+
+            for (int i = 0; i < FILES_PER_THREAD; i += 2) {
+                fs.delete("t" + thread + "-f" + i);
+            }
+
+            for (int i = 1; i < FILES_PER_THREAD; i += 2) {
+                int fd = fs.open("t" + thread + "-f" + i);
+                assertEquals(contents(thread, i) + "!", fs.read(fd), "File should not be clobbered by other threads");
+                fs.close(fd);
+            }
+        });
+
+        // Every block still in use belongs to exactly one surviving file
+        int usedBlocks = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 1; i < FILES_PER_THREAD; i += 2) {
+                int size = (contents(t, i) + "!").getBytes().length;
+                usedBlocks += (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            }
+        }
+        assertEquals(Disk.NUM_BLOCKS - usedBlocks, fs.freeList.getFreeBlockCount());
+    }
+
+    @Test
+    void deleteRecreateAndSyncKeepTheNewFiles() throws Exception {
+        Disk disk = new MappedDisk();
+        FileSystem fs = new FileSystem(disk);
+        int workers = threadCount();
+        AtomicInteger running = new AtomicInteger(workers);
+
+        // Thread 0 syncs while the others delete open, changed files and create them again
+        runConcurrently(workers + 1, thread -> {
+            if (thread == 0) {
+                while (running.get() > 0) {
+                    fs.sync();
+                }
+                return;
+            }
+            try {
+                String name = "t" + thread;
+                for (int i = 0; i < RECREATES_PER_THREAD; i++) {
+                    int fd = fs.create(name);
+                    fs.write(fd, contents(thread, i % FILES_PER_THREAD));
+                    fs.delete(name);
+
+                    fd = fs.create(name);
+                    fs.write(fd, contents(thread, 0));
+                    fs.close(fd);
+                    fd = fs.open(name);
+                    assertTrue(fd >= 0, "A sync should not blank the inode of the file created again");
+                    assertEquals(contents(thread, 0), fs.read(fd));
+                    fs.close(fd);
+                    fs.delete(name);
+                }
+                int fd = fs.create(name);
+                fs.write(fd, contents(thread, 0));
+                fs.close(fd);
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+        fs.unmount();
+
+        // A deleted file's inode written late would blank the new file on disk
+        FileSystem mounted = new FileSystem(disk, false);
+        for (int t = 1; t <= workers; t++) {
+            int fd = mounted.open("t" + t);
+            assertTrue(fd >= 0, "File t" + t + " should survive a sync of the file deleted before it");
+            assertEquals(contents(t, 0), mounted.read(fd));
+            mounted.close(fd);
+        }
+        mounted.unmount();
+    }
+
+    @Test
+    void concurrentReadsOfDifferentFilesReturnTheirContents() throws Exception {
+        FileSystem fs = new FileSystem(new MappedDisk());
+        int threads = threadCount();
+
+        int[][] descriptors = new int[threads][FILES_PER_THREAD];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < FILES_PER_THREAD; i++) {
+                descriptors[t][i] = fs.create("t" + t + "-f" + i);
+                fs.write(descriptors[t][i], contents(t, i));
+            }
+        }
+
+        // How the reads scale with threads is measured by ReadScalingBenchmark
+        runConcurrently(threads, thread -> {
+            for (int r = 0; r < READS_PER_FILE; r++) {
+                for (int i = 0; i < FILES_PER_THREAD; i++) {
+                    assertEquals(contents(thread, i), fs.read(descriptors[thread][i]));
+                }
+            }
+        });
+        fs.unmount();
+    }
+
+    @Test
+    void allocationInDifferentGroupsKeepsCountsConsistent() throws Exception {
+        FreeBlockList freeList = new FreeBlockList();
+        int threads = threadCount();
+
+        runConcurrently(threads, thread -> {
+            List<int[]> held = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                int[] blocks = freeList.allocateContiguous(1 + (i % 16), thread * (FreeBlockList.NUM_GROUPS / threads));
+                assertNotNull(blocks);
+                for (int block : blocks) {
+                    assertTrue(freeList.isBlockAllocated(block));
+                }
+                held.add(blocks);
+                if (held.size() > 8) {
+                    freeList.free(held.remove(0));
+                }
+            }
+            for (int[] blocks : held) {
+                freeList.free(blocks);
+            }
+        });
+
+        assertEquals(Disk.NUM_BLOCKS, freeList.getFreeBlockCount());
+        assertEquals(Disk.NUM_BLOCKS, freeList.largestExtent());
+        for (int g = 0; g < FreeBlockList.NUM_GROUPS; g++) {
+            assertEquals(FreeBlockList.GROUP_SIZE, freeList.freeBlocksInGroup(g));
+        }
+    }
+}
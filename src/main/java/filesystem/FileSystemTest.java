@@ -4,6 +4,14 @@ import org.junit.Before;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -24,24 +32,38 @@ class FileSystemTest {
 
             // Step 1: Create a new file
             int fd = fs.create(fileName);
+            fs.close(fd);
+            fs.unmount(); // Persist the new inode so it can be patched on disk
 
             // Step 2: Manually simulate writing data into the file's inode and disk blocks
-            INode inode = fs.diskDevice.readInode(fd); // Get inode
+            Disk disk = new Disk();
+            disk.mount();
+            INode inode = disk.readInode(fd); // Get inode
             inode.setSize(fileContent.length()); // Set the file size
             inode.setBlockPointer(0, 0); // Block 0
             inode.setBlockPointer(1, 1); // Block 1
             inode.setBlockPointer(2, 2); // Block 2
-            fs.diskDevice.writeInode(inode, fd); // Write inode back to disk
+            disk.writeInode(inode, fd); // Write inode back to disk
+
+            FreeBlockList freeBlockList = new FreeBlockList();
+            freeBlockList.setFreeBlockList(disk.readFreeBlockList());
+            freeBlockList.allocateBlock(0);
+            freeBlockList.allocateBlock(1);
+            freeBlockList.allocateBlock(2);
+            disk.writeFreeBlockList(freeBlockList.getFreeBlockList());
 
             // Write data directly to the disk blocks
             byte[] block0 = fileContent.substring(0, Disk.BLOCK_SIZE).getBytes();
             byte[] block1 = fileContent.substring(Disk.BLOCK_SIZE, Disk.BLOCK_SIZE * 2).getBytes();
             byte[] block2 = fileContent.substring(Disk.BLOCK_SIZE * 2).getBytes();
-            fs.diskDevice.writeDataBlock(block0, 0); // Write to block 0
-            fs.diskDevice.writeDataBlock(block1, 1); // Write to block 1
-            fs.diskDevice.writeDataBlock(block2, 2); // Write to block 2
-
-            // Step 3: Read the data back
+            disk.writeDataBlock(block0, 0); // Write to block 0
+            disk.writeDataBlock(block1, 1); // Write to block 1
+            disk.writeDataBlock(block2, 2); // Write to block 2
+            disk.close();
+
+            // Step 3: Mount the patched disk and read the data back
+            fs = new FileSystem(new Disk(), false);
+            fd = fs.open(fileName);
             String readContent = fs.read(fd);
 
             // Assert: Verify the content matches what was written
@@ -128,8 +150,6 @@ class FileSystemTest {
         assertEquals(data.length(), inode.getSize(), "File size should match the length of written data.");
     }
 
-  
-}
   @Test
     void testUnsuccessfulBlockAllocation() throws IOException {
         // Arrange: Create a FileSystem and simulate a full disk
@@ -140,7 +160,7 @@ class FileSystemTest {
         for (int i = 0; i < freeBlockList.length; i++) {
             freeBlockList[i] = (byte) 0xFF; // Set all bits to 1 (all blocks used)
         }
-        fs.diskDevice.writeFreeBlockList(freeBlockList); // Mark all blocks as allocated
+        fs.freeList.setFreeBlockList(freeBlockList); // Mark all blocks as allocated in the resident list
 
         String fileName = "testFile.txt";
         int fileSize = Disk.BLOCK_SIZE; // File size that requires 1 block
@@ -166,14 +186,720 @@ class FileSystemTest {
         assertTrue((freeList[blockToAllocate / 8] & (1 << (blockToAllocate % 8))) != 0,
                 "Block should be allocated before deallocation");
 
+        freeBlockList.setFreeBlockList(freeList);
+
         // Act: Deallocate the block
         freeBlockList.deallocateBlock(blockToAllocate);
 
         // Assert: Verify the block is deallocated
+        freeList = freeBlockList.getFreeBlockList();
         assertFalse((freeList[blockToAllocate / 8] & (1 << (blockToAllocate % 8))) != 0,
                 "Block should be deallocated");
     }
 
-}
+    @Test
+    void allocateSkipsUsedBlocksAndFreeReturnsThem() {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        for (int i = 0; i < 70; i++) {
+            freeBlockList.allocateBlock(i);
+        }
+
+        int[] blocks = freeBlockList.allocate(3);
+
+        assertArrayEquals(new int[]{70, 71, 72}, blocks, "Allocation should skip the full first word");
+        assertEquals(Disk.NUM_BLOCKS - 73, freeBlockList.getFreeBlockCount());
+
+        assertEquals(3, freeBlockList.free(new int[]{70, 71, 72, -1}));
+        assertFalse(freeBlockList.isBlockAllocated(71), "Freed block should be free");
+        assertEquals(Disk.NUM_BLOCKS - 70, freeBlockList.getFreeBlockCount());
+
+        assertNull(freeBlockList.allocate(Disk.NUM_BLOCKS), "Allocation beyond the free count should fail");
+    }
+
+    @Test
+    void allocateContiguousUsesBestFitThenFewestExtents() {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            freeBlockList.allocateBlock(i);
+        }
+
+        // Free runs of 10 (at 100), 4 (at 200) and 6 (at 300) blocks
+        freeBlockList.free(new int[]{100, 101, 102, 103, 104, 105, 106, 107, 108, 109});
+        freeBlockList.free(new int[]{200, 201, 202, 203});
+        freeBlockList.free(new int[]{300, 301, 302, 303, 304, 305});
+
+        assertArrayEquals(new int[]{300, 301, 302, 303, 304}, freeBlockList.allocateContiguous(5),
+                "The smallest run that fits should be used");
+
+        assertArrayEquals(new int[]{100, 101, 102, 103, 104, 105, 106, 107, 108, 109, 200},
+                freeBlockList.allocateContiguous(11),
+                "The largest runs should be used when no run fits");
+        assertEquals(4, freeBlockList.getFreeBlockCount());
+    }
+
+    @Test
+    void vectoredBlockIoMatchesSingleBlockIo() throws IOException {
+        for (Disk disk : new Disk[]{new Disk(), new MappedDisk()}) {
+            disk.format();
+
+            byte[] data = new byte[Disk.BLOCK_SIZE * 2 + 100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i % 127);
+            }
+            int[] blocks = {5, 6, 9};
+
+            disk.writeDataBlocks(blocks, ByteBuffer.wrap(data));
+
+            assertArrayEquals(Arrays.copyOfRange(data, Disk.BLOCK_SIZE, Disk.BLOCK_SIZE * 2),
+                    disk.readDataBlock(6), "Second block should hold the second 512 bytes");
+
+            ByteBuffer readBack = ByteBuffer.allocate(data.length);
+            disk.readDataBlocks(blocks, readBack);
+            assertArrayEquals(data, readBack.array(), "Vectored read should return what was written");
+        }
+    }
+
+    @Test
+    void cachedDiskServesHotReadsAndWritesBackOnFlush() throws IOException {
+        Disk backing = new Disk();
+        CachedDisk cache = new CachedDisk(backing, 2, 8);
+        cache.format();
+
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        Arrays.fill(block, (byte) 'x');
+        cache.writeDataBlock(block, 3);
+
+        assertArrayEquals(new byte[Disk.BLOCK_SIZE], backing.readDataBlock(3), "Write should be held back until flush");
+        assertArrayEquals(block, cache.readDataBlock(3));
+        assertEquals(1, cache.getHits());
+
+        cache.flush();
+        assertArrayEquals(block, backing.readDataBlock(3), "Flush should write the dirty block back");
+
+        // Reading two other blocks evicts block 3, which then misses
+        cache.readDataBlock(4);
+        cache.readDataBlock(5);
+        assertEquals(2, cache.getCachedBlockCount());
+        long misses = cache.getMisses();
+        cache.readDataBlock(3);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    void freeBlockListIsPersistedAtSync() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("synced.txt");
+        fs.write(fd, "A".repeat(Disk.BLOCK_SIZE * 2));
+
+        assertArrayEquals(new byte[Disk.BYTES_IN_FREE_SPACE_LIST], fs.diskDevice.readFreeBlockList(),
+                "Free block list should stay in memory until sync");
+
+        fs.close(fd);
+
+        FreeBlockList onDisk = new FreeBlockList();
+        onDisk.setFreeBlockList(fs.diskDevice.readFreeBlockList());
+        assertEquals(Disk.NUM_BLOCKS - 2, onDisk.getFreeBlockCount(), "Close should persist the free block list");
+    }
+
+    @Test
+    void offsetWriteTouchesOnlyTheModifiedRange() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("offsets.txt");
+
+        fs.write(fd, "hello world".getBytes(), 0, 11);
+        fs.write(fd, "WORLD".getBytes(), 6, 5);
+        assertEquals("hello WORLD", fs.read(fd));
+
+        int freeBlocks = fs.freeList.getFreeBlockCount();
+        fs.append(fd, "!");
+        assertEquals("hello WORLD!", fs.read(fd));
+        assertEquals(freeBlocks, fs.freeList.getFreeBlockCount(), "Appending within the last block should not allocate");
+
+        // Writing past the end leaves a zero-filled gap and grows the file by a block
+        fs.write(fd, "end".getBytes(), Disk.BLOCK_SIZE + 10, 3);
+        String content = fs.read(fd);
+        assertEquals(Disk.BLOCK_SIZE + 13, content.length());
+        assertEquals("hello WORLD!", content.substring(0, 12));
+        assertEquals((char) 0, content.charAt(100));
+        assertEquals("end", content.substring(Disk.BLOCK_SIZE + 10));
+        assertEquals(freeBlocks - 1, fs.freeList.getFreeBlockCount());
+    }
+
+    @Test
+    void positionalReadAndStreamReturnFileBytes() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("stream.txt");
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        fs.write(fd, content.toString());
+        byte[] expected = content.toString().getBytes();
+
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        assertEquals(20, fs.read(fd, dst, 600));
+        assertArrayEquals(Arrays.copyOfRange(expected, 600, 620), dst.array());
+        assertEquals(-1, fs.read(fd, ByteBuffer.allocate(1), expected.length));
+
+        try (InputStream in = fs.newInputStream(fd)) {
+            assertArrayEquals(expected, in.readAllBytes(), "Stream should return the whole file");
+        }
+    }
+
+    @Test
+    void severalFilesCanBeOpenAtOnce() throws IOException {
+        FileSystem fs = new FileSystem();
+        int a = fs.create("a.txt");
+        int b = fs.create("b.txt");
+
+        fs.write(a, "first file");
+        fs.write(b, "second file");
+        fs.append(a, " grows");
+
+        assertEquals("first file grows", fs.read(a));
+        assertEquals("second file", fs.read(b));
+
+        fs.close(a);
+        assertThrows(IOException.class, () -> fs.read(a), "Closed descriptor should be rejected");
+        assertEquals("second file", fs.read(b));
+        fs.close(b);
+
+        int reopened = fs.open("a.txt");
+        assertEquals("first file grows", fs.read(reopened), "Appended size should be written back on close");
+    }
+
+    @Test
+    void mountKeepsFilesWrittenBeforeUnmount() throws IOException {
+        for (Disk disk : new Disk[]{new Disk(), new MappedDisk()}) {
+            FileSystem before = new FileSystem(disk);
+            int fd = before.create("kept");
+            before.write(fd, "survives a remount");
+            before.close(fd);
+            before.unmount();
+
+            FileSystem after = new FileSystem(disk, false);
+            fd = after.open("kept");
+            assertTrue(fd >= 0, "File should still exist after mounting");
+            assertEquals("survives a remount", after.read(fd));
+            assertEquals(Disk.NUM_BLOCKS - 1, after.freeList.getFreeBlockCount());
+            after.close(fd);
+            after.unmount();
+        }
+    }
+
+    @Test
+    void inodeTableMatchesInodesReadOneAtATime() throws IOException {
+        for (Disk disk : new Disk[]{new Disk(), new MappedDisk(), new CachedDisk(new Disk())}) {
+            disk.format();
+
+            INode inode = new INode();
+            inode.setFileName("table");
+            inode.setSize(700);
+            inode.setBlockPointer(0, 12);
+            inode.setBlockPointer(1, 13);
+            disk.writeInode(inode, 5);
+
+            INodeTable table = disk.readINodeTable();
+            for (int i : new int[]{0, 5, Disk.NUM_INODES - 1}) {
+                INode expected = disk.readInode(i);
+                assertEquals(expected.getFileName() != null, table.isInUse(i));
+                if (expected.getFileName() != null) {
+                    assertEquals(expected.getFileName().trim(), table.getFileName(i).trim());
+                }
+                assertEquals(expected.getSize(), table.getSize(i));
+                for (int p = 0; p < INode.NUM_BLOCK_POINTERS; p++) {
+                    assertEquals(expected.getBlockPointer(p), table.getBlockPointer(i, p));
+                }
+            }
+            disk.close();
+        }
+    }
+
+    @Test
+    void inodeEncodingRoundTrips() {
+        INode inode = new INode();
+        inode.setFileName("encoded");
+        inode.setSize(1000);
+        inode.setBlockPointer(0, 40);
+        inode.setBlockPointer(1, 41);
+
+        ByteBuffer buffer = ByteBuffer.allocate(INode.ENCODED_SIZE);
+        inode.writeTo(buffer);
+        assertFalse(buffer.hasRemaining(), "Encoding should fill exactly ENCODED_SIZE bytes");
+        buffer.flip();
+
+        INode decoded = INode.readFrom(buffer);
+        assertEquals("encoded", decoded.getFileName().trim());
+        assertEquals(1000, decoded.getSize());
+        assertEquals(41, decoded.getBlockPointer(1));
+        assertEquals(-1, decoded.getBlockPointer(2));
+
+        buffer.clear();
+        new INode().writeTo(buffer);
+        buffer.flip();
+        assertNull(INode.readFrom(buffer).getFileName(), "An all zero name should read as no name");
+    }
+
+    @Test
+    void largeFilesUseIndirectBlocks() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("large");
+
+        // Past the direct pointers and well into the double indirect block
+        byte[] data = new byte[(INode.NUM_DIRECT_POINTERS + INode.POINTERS_PER_BLOCK + 300) * Disk.BLOCK_SIZE + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / Disk.BLOCK_SIZE);
+        }
+        fs.write(fd, data, 0, data.length);
+
+        int dataBlocks = (data.length + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        assertEquals(Disk.NUM_BLOCKS - dataBlocks - INode.indirectBlocksFor(dataBlocks),
+                fs.freeList.getFreeBlockCount(), "Indirect blocks should be allocated alongside the data");
 
+        ByteBuffer readBack = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, fs.read(fd, readBack, 0));
+        assertArrayEquals(data, readBack.array());
 
+        ByteBuffer tail = ByteBuffer.allocate(100);
+        fs.read(fd, tail, data.length - 100);
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 100, data.length), tail.array());
+
+        fs.close(fd);
+        fs.delete("large");
+        assertEquals(Disk.NUM_BLOCKS, fs.freeList.getFreeBlockCount(), "Deleting should free the indirect blocks too");
+    }
+
+    @Test
+    void extentFormatDescribesContiguousFileWithOneExtent() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_EXTENTS);
+        FileSystem fs = new FileSystem(disk, false);
+
+        int fd = fs.create("extents");
+        byte[] data = new byte[Disk.BLOCK_SIZE * 40];
+        Arrays.fill(data, (byte) 'e');
+        fs.write(fd, data, 0, data.length);
+        fs.append(fd, "tail");
+        fs.close(fd);
+
+        INode inode = disk.readInode(fd);
+        assertEquals(41, inode.getBlockPointer(1), "Appending next to the file should grow its extent");
+        assertEquals(-1, inode.getBlockPointer(3), "The file should be a single extent");
+
+        fs.unmount();
+        fs = new FileSystem(disk, false);
+        assertEquals(Disk.INODE_FORMAT_EXTENTS, disk.getInodeFormat(), "The format should be read from the superblock");
+        fd = fs.open("extents");
+        ByteBuffer readBack = ByteBuffer.allocate(data.length + 4);
+        fs.read(fd, readBack, 0);
+        assertEquals("tail", new String(readBack.array(), data.length, 4));
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void extentRewriteOnFragmentedDiskKeepsOldContents() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_EXTENTS);
+        FileSystem fs = new FileSystem(disk, false);
+
+        int fd = fs.create("fragmented");
+        String old = "o".repeat(2 * Disk.BLOCK_SIZE);
+        fs.write(fd, old);
+
+        // Leave only single free blocks, so 20 blocks would need 20 extents
+        for (int b = 0; b < Disk.NUM_BLOCKS; b += 2) {
+            fs.freeList.allocateBlock(b);
+        }
+        int free = fs.freeList.getFreeBlockCount();
+
+        assertThrows(IOException.class, () -> fs.write(fd, "n".repeat(20 * Disk.BLOCK_SIZE)));
+        assertEquals(old, fs.read(fd));
+        assertEquals(free, fs.freeList.getFreeBlockCount(), "A refused write should allocate nothing");
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void failedDataWriteLeavesNoBlocksPastTheEndOfFile() throws IOException {
+        boolean[] failWrites = {false};
+        Disk disk = new Disk() {
+            @Override
+            public void writeDataBlocks(int[] blocks, ByteBuffer src) throws IOException {
+                if (failWrites[0]) {
+                    throw new IOException("write failed");
+                }
+                super.writeDataBlocks(blocks, src);
+            }
+        };
+        FileSystem fs = new FileSystem(disk);
+
+        int fd = fs.create("growing");
+        String old = "o".repeat(INode.NUM_DIRECT_POINTERS * Disk.BLOCK_SIZE - 10);
+        fs.write(fd, old);
+        int free = fs.freeList.getFreeBlockCount();
+
+        // The append needs new data blocks and the single indirect block
+        failWrites[0] = true;
+        assertThrows(IOException.class, () -> fs.append(fd, "n".repeat(4 * Disk.BLOCK_SIZE)));
+        failWrites[0] = false;
+        assertEquals(free, fs.freeList.getFreeBlockCount(), "A failed write should free the blocks it allocated");
+        assertEquals(old, fs.read(fd));
+
+        fs.append(fd, "n".repeat(4 * Disk.BLOCK_SIZE));
+        assertEquals(old + "n".repeat(4 * Disk.BLOCK_SIZE), fs.read(fd));
+        fs.close(fd);
+        fs.delete("growing");
+        assertEquals(Disk.NUM_BLOCKS, fs.freeList.getFreeBlockCount(), "Deleting the file should free every block");
+        fs.unmount();
+    }
+
+    @Test
+    void journalReplaysCommittedMetadataAtMount() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_POINTERS, Disk.FEATURE_JOURNAL);
+        FileSystem fs = new FileSystem(disk, false);
+
+        int fd = fs.create("journaled");
+        fs.write(fd, "kept by the journal");
+        fs.close(fd);
+        assertNull(disk.readInode(fd).getFileName(), "Metadata should wait for the commit");
+
+        fs.force();
+        INode committed = disk.readInode(fd);
+        assertEquals("journaled", committed.getFileName().trim());
+
+        // Lose the in-place metadata writes, as a crash right after the journal write would
+        disk.writeInode(new INode(), fd);
+        disk.writeFreeBlockList(new byte[Disk.BYTES_IN_FREE_SPACE_LIST]);
+        disk.close();
+
+        fs = new FileSystem(disk, false);
+        fd = fs.open("journaled");
+        assertTrue(fd >= 0, "Replay should restore the inode");
+        assertEquals("kept by the journal", fs.read(fd));
+        assertEquals(Disk.NUM_BLOCKS - 1, fs.freeList.getFreeBlockCount(), "Replay should restore the free block list");
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void journaledRewriteFreesOldBlocksAtTheCommit() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_POINTERS, Disk.FEATURE_JOURNAL);
+        FileSystem fs = new FileSystem(disk, false);
+
+        int fd = fs.create("rewritten");
+        fs.write(fd, "committed contents");
+        fs.force();
+        int old = disk.readInode(fd).getBlockPointer(0);
+
+        fs.write(fd, "new contents");
+        assertTrue(fs.freeList.isBlockAllocated(old), "The committed inode still points at the old block");
+        assertEquals("committed contents", new String(disk.readDataBlock(old)).trim(), "The old block should not be reused");
+
+        fs.force();
+        assertFalse(fs.freeList.isBlockAllocated(old), "The old block should be freed by the commit");
+        assertEquals("new contents", fs.read(fd));
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void batchAppliesOperationsTogether() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("old");
+        fs.write(fd, "to be deleted");
+        fs.close(fd);
+
+        fs.batch()
+                .create("a").write("a", "first file")
+                .create("b").write("b", "x".repeat(3 * Disk.BLOCK_SIZE))
+                .create("c").delete("c")
+                .delete("old")
+                .commit();
+
+        fd = fs.open("a");
+        assertEquals("first file", fs.read(fd));
+        fs.close(fd);
+        fd = fs.open("b");
+        assertEquals("x".repeat(3 * Disk.BLOCK_SIZE), fs.read(fd));
+        fs.close(fd);
+        assertEquals(-1, fs.open("c"));
+        assertEquals(-1, fs.open("old"));
+        assertEquals(Disk.NUM_BLOCKS - 4, fs.freeList.getFreeBlockCount());
+
+        // A batch that fails its checks changes nothing
+        assertThrows(IOException.class, () -> fs.batch().create("d").write("missing", "data").commit());
+        assertEquals(-1, fs.open("d"));
+        fs.unmount();
+    }
+
+    @Test
+    void refusedBatchChangesNothing() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_EXTENTS);
+        FileSystem fs = new FileSystem(disk, false);
+        fs.batch().create("kept").write("kept", "still here").create("other").write("other", "too").commit();
+
+        // Leave only single free blocks, so a 20-block file would need 20 extents
+        for (int b = 0; b < Disk.NUM_BLOCKS; b += 2) {
+            fs.freeList.allocateBlock(b);
+        }
+        int free = fs.freeList.getFreeBlockCount();
+
+        assertThrows(IOException.class, () -> fs.batch()
+                .delete("kept")
+                .write("other", "x".repeat(3 * Disk.BLOCK_SIZE))
+                .create("large").write("large", "L".repeat(20 * Disk.BLOCK_SIZE))
+                .commit());
+
+        assertEquals(free, fs.freeList.getFreeBlockCount(), "A refused batch should allocate and free nothing");
+        assertEquals(-1, fs.open("large"));
+        int fd = fs.open("kept");
+        assertEquals("still here", fs.read(fd));
+        fs.close(fd);
+        fd = fs.open("other");
+        assertEquals("too", fs.read(fd));
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void asyncWritesAndReadsMatchSynchronousOnes() throws Exception {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("async");
+        byte[] data = new byte[3 * Disk.BLOCK_SIZE + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        CompletableFuture<Void> first = fs.writeAsync(fd, data, 0, Disk.BLOCK_SIZE + 7);
+        CompletableFuture<Void> rest = fs.writeAsync(fd, Arrays.copyOfRange(data, Disk.BLOCK_SIZE + 7, data.length),
+                Disk.BLOCK_SIZE + 7, data.length - Disk.BLOCK_SIZE - 7);
+        CompletableFuture.allOf(first, rest).get();
+
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, (int) fs.readAsync(fd, whole, 0).get());
+        assertArrayEquals(data, whole.array());
+
+        ByteBuffer middle = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+        assertEquals(Disk.BLOCK_SIZE, (int) fs.readAsync(fd, middle, 300).get());
+        assertArrayEquals(Arrays.copyOfRange(data, 300, 300 + Disk.BLOCK_SIZE), middle.array());
+        assertEquals(-1, (int) fs.readAsync(fd, middle, data.length).get());
+
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void migrationConvertsVersionOneDisk() throws IOException {
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_POINTERS, Disk.FEATURE_JOURNAL, Disk.LAYOUT_VERSION_1);
+        FileSystem fs = new FileSystem(disk, false);
+        fs.batch().create("small").write("small", "kept").create("large").write("large", "L".repeat(40000)).commit();
+        fs.unmount();
+
+        assertTrue(LayoutMigration.migrate(Disk.RAW_DISK_NAME));
+        assertFalse(LayoutMigration.migrate(Disk.RAW_DISK_NAME), "A migrated disk needs no migration");
+
+        disk = new Disk();
+        fs = new FileSystem(disk, false);
+        assertEquals(Disk.LAYOUT_VERSION_2, disk.getLayoutVersion());
+        assertEquals(INode.ENCODED_SIZE, Disk.inodeSlotSize(Disk.LAYOUT_VERSION_2), "Inodes should be packed");
+        assertEquals(0, Disk.dataBlocksOffset(Disk.LAYOUT_VERSION_2) % Disk.BLOCK_SIZE);
+        int fd = fs.open("small");
+        assertEquals("kept", fs.read(fd));
+        fs.close(fd);
+        fd = fs.open("large");
+        assertEquals("L".repeat(40000), fs.read(fd));
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void meteredDiskRecordsOperationsAndDiskAccesses() throws IOException {
+        MeteredDisk disk = new MeteredDisk(new Disk());
+        FileSystem fs = new FileSystem(disk, true);
+        assertSame(disk.getMetrics(), fs.getMetrics());
+
+        int fd = fs.create("metered");
+        fs.write(fd, "M".repeat(5000));
+        assertEquals("M".repeat(5000), fs.read(fd));
+        fs.close(fd);
+
+        Map<Metrics.Metric, Metrics.Stats> stats = fs.getMetrics().snapshot();
+        assertEquals(1, stats.get(Metrics.Metric.CREATE).getCount());
+        assertEquals(5000, stats.get(Metrics.Metric.WRITE).getBytes());
+        assertEquals(5000, stats.get(Metrics.Metric.READ).getBytes());
+        assertTrue(stats.get(Metrics.Metric.BLOCK_WRITE).getBytes() >= 5000);
+        for (Metrics.Stats s : stats.values()) {
+            assertTrue(s.getP50Nanos() <= s.getP99Nanos() && s.getP99Nanos() <= s.getMaxNanos(), s.toString());
+        }
+
+        fs.getMetrics().reset();
+        assertEquals(0, fs.getMetrics().get(Metrics.Metric.CREATE).getCount());
+        fs.unmount();
+    }
+
+    @Test
+    void traceIsOffByDefaultAndSamplesWhenEnabled() throws IOException {
+        FileSystem fs = new FileSystem();
+        List<Trace.Event> events = new ArrayList<>();
+        fs.getTrace().setSink((level, event, message) -> events.add(event));
+
+        int fd = fs.create("traced");
+        fs.write(fd, "T".repeat(3000));
+        assertTrue(events.isEmpty(), "Nothing is traced by default");
+
+        fs.getTrace().setLevel(Trace.Level.DEBUG);
+        fs.write(fd, "T".repeat(3000));
+        fs.read(fd);
+        assertTrue(events.contains(Trace.Event.DEALLOCATE));
+        assertTrue(events.contains(Trace.Event.ALLOCATE));
+        assertTrue(events.contains(Trace.Event.DATA_WRITE));
+        assertTrue(events.contains(Trace.Event.DATA_READ));
+        assertTrue(events.contains(Trace.Event.INODE_WRITE));
+
+        int traced = events.size();
+        events.clear();
+        fs.getTrace().setSampling(1000);
+        fs.write(fd, "T".repeat(3000));
+        fs.read(fd);
+        assertTrue(events.size() < traced, "Sampling traces fewer events");
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    void freeSpaceSummariesMatchTheBitmap() {
+        FreeBlockList list = new FreeBlockList();
+        assertEquals(Disk.NUM_BLOCKS, list.largestExtent());
+
+        java.util.Random random = new java.util.Random(42);
+        for (int round = 0; round < 200; round++) {
+            int[] blocks = list.allocateContiguous(1 + random.nextInt(300));
+            if (blocks == null || random.nextBoolean()) {
+                int first = random.nextInt(Disk.NUM_BLOCKS);
+                list.free(new int[]{first, (first + 1) % Disk.NUM_BLOCKS, (first + 7) % Disk.NUM_BLOCKS});
+            }
+
+            int free = 0;
+            int run = 0;
+            int longest = 0;
+            for (int b = 0; b < Disk.NUM_BLOCKS; b++) {
+                run = list.isBlockAllocated(b) ? 0 : run + 1;
+                free += run > 0 ? 1 : 0;
+                longest = Math.max(longest, run);
+            }
+            assertEquals(free, list.getFreeBlockCount());
+            assertEquals(longest, list.largestExtent());
+
+            int inGroups = 0;
+            for (int g = 0; g < FreeBlockList.NUM_GROUPS; g++) {
+                inGroups += list.freeBlocksInGroup(g);
+            }
+            assertEquals(free, inGroups);
+        }
+    }
+
+    @Test
+    void oversizeWriteIsRejectedBeforeTheFileIsChanged() throws IOException {
+        FileSystem fs = new FileSystem();
+        int filler = fs.create("filler");
+        fs.write(filler, "F".repeat(15000 * Disk.BLOCK_SIZE));
+        int fd = fs.create("kept");
+        fs.write(fd, "still here");
+
+        assertThrows(IOException.class, () -> fs.write(fd, "X".repeat(2000 * Disk.BLOCK_SIZE)));
+        assertEquals("still here", fs.read(fd));
+        fs.close(fd);
+        fs.close(filler);
+        fs.unmount();
+
+        // Enough free blocks in total, but too scattered for the extents of one inode
+        Disk disk = new Disk();
+        disk.format(Disk.INODE_FORMAT_EXTENTS);
+        FileSystem extents = new FileSystem(disk, false);
+        int kept = extents.create("kept");
+        extents.write(kept, "still here");
+        for (int b = 0; b < Disk.NUM_BLOCKS; b += 2) {
+            extents.freeList.allocateBlock(b);
+        }
+        int free = extents.freeList.getFreeBlockCount();
+
+        IOException e = assertThrows(IOException.class,
+                () -> extents.write(kept, "X".repeat(100 * Disk.BLOCK_SIZE)));
+        assertTrue(e.getMessage().contains("fragmented"), e.getMessage());
+        assertEquals("still here", extents.read(kept));
+        assertEquals(free, extents.freeList.getFreeBlockCount(), "A refused write should allocate nothing");
+
+        extents.write(kept, "rewritten");
+        assertEquals("rewritten", extents.read(kept));
+        extents.close(kept);
+        extents.unmount();
+    }
+
+    @Test
+    void filesAreAllocatedInTheGroupOfTheirInode() throws IOException {
+        Disk disk = new Disk();
+        FileSystem fs = new FileSystem(disk);
+
+        int first = fs.create("first");
+        int second = fs.create("second");
+        assertNotEquals(Disk.groupOfInode(first), Disk.groupOfInode(second),
+                "New files should start in different groups");
+
+        fs.write(first, "1".repeat(10 * Disk.BLOCK_SIZE));
+        fs.write(second, "2".repeat(10 * Disk.BLOCK_SIZE));
+        fs.close(first);
+        fs.close(second);
+
+        for (int fd : new int[]{first, second}) {
+            INode inode = disk.readInode(fd);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(Disk.groupOfInode(fd), Disk.groupOfBlock(inode.getBlockPointer(i)));
+            }
+        }
+        fs.unmount();
+    }
+
+    @Test
+    void batchFilesAreAllocatedInTheGroupOfTheirInode() throws IOException {
+        Disk disk = new Disk();
+        FileSystem fs = new FileSystem(disk);
+
+        fs.batch()
+                .create("first").write("first", "1".repeat(10 * Disk.BLOCK_SIZE))
+                .create("second").write("second", "2".repeat(10 * Disk.BLOCK_SIZE))
+                .commit();
+        int first = fs.open("first");
+        int second = fs.open("second");
+        assertNotEquals(Disk.groupOfInode(first), Disk.groupOfInode(second),
+                "Files created by a batch should start in different groups");
+        fs.close(first);
+        fs.close(second);
+
+        // Rewriting an existing file also allocates in its group
+        fs.batch().write("second", "3".repeat(12 * Disk.BLOCK_SIZE)).commit();
+
+        for (int fd : new int[]{first, second}) {
+            INode inode = disk.readInode(fd);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(Disk.groupOfInode(fd), Disk.groupOfBlock(inode.getBlockPointer(i)));
+            }
+        }
+        fs.unmount();
+    }
+
+    @Test
+    void mountRejectsUnformattedDisk() throws IOException {
+        new FileSystem().unmount();
+        try (RandomAccessFile raw = new RandomAccessFile(Disk.RAW_DISK_NAME, "rw")) {
+            raw.write(new byte[Disk.SUPERBLOCK_SIZE]);
+        }
+
+        assertThrows(IOException.class, () -> new FileSystem(new Disk(), false));
+    }
+}
@@ -1,18 +1,99 @@
 package filesystem;
 
-import static org.junit.jupiter.api.Assertions.*;
-import org.junit.jupiter.api.Test;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
 
 public class FreeBlockList {
-    private byte[] freeList;
+    private static final int BITS_PER_WORD = Long.SIZE;
+    private static final int NUM_WORDS = Disk.NUM_BLOCKS / BITS_PER_WORD;
+
+    /**
+     * Blocks in an allocation group (see <code>Disk.BLOCKS_PER_GROUP</code>).
+     * Each group keeps a count of its free blocks and, recomputed only when
+     * it has changed, the free runs at its start and end and the longest
+     * free run inside it.
+     */
+    public static final int GROUP_SIZE = Disk.BLOCKS_PER_GROUP;
+    public static final int NUM_GROUPS = Disk.NUM_GROUPS;
+    private static final int WORDS_PER_GROUP = GROUP_SIZE / BITS_PER_WORD;
+
+    /**
+     * The free block list is held as 64-bit words.  Block <code>b</code> is
+     * bit <code>b % 64</code> of word <code>b / 64</code>, which is the same
+     * bit the on-disk byte list uses (bit <code>b % 8</code> of byte
+     * <code>b / 8</code>) once the words are laid out little-endian.
+     *
+     * Each group has its own lock, guarding its words of the list and its
+     * summaries.  Allocating within a group and allocating, freeing or
+     * checking a single block take only that group's lock, so threads working
+     * in different groups do not contend.  Operations on the whole list take
+     * every group's lock in group order.  The allocator locks are taken last,
+     * after the per-file locks in FileSystem.
+     */
+    private final long[] freeList;
+    private final AtomicInteger freeBlocks;
+    private final ReentrantLock[] groupLocks;
+
+    /**
+     * Per-group summaries, indexed by group.  <code>groupFree</code> is also
+     * read without the lock as a hint of where to allocate.
+     */
+    private final int[] groupFree;
+    private final int[] groupLeadingFree;
+    private final int[] groupTrailingFree;
+    private final int[] groupLongestFree;
+    private final boolean[] groupStale;
+
+    /**
+     * Next-fit cursor: the word at which the next allocation starts
+     * searching, guarded by every group's lock
+     */
+    private int cursor;
 
     public FreeBlockList() {
-        freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+        freeList = new long[NUM_WORDS];
+        freeBlocks = new AtomicInteger(Disk.NUM_BLOCKS);
+        cursor = 0;
+
+        groupLocks = new ReentrantLock[NUM_GROUPS];
+        for (int g = 0; g < NUM_GROUPS; g++) {
+            groupLocks[g] = new ReentrantLock();
+        }
+
+        groupFree = new int[NUM_GROUPS];
+        groupLeadingFree = new int[NUM_GROUPS];
+        groupTrailingFree = new int[NUM_GROUPS];
+        groupLongestFree = new int[NUM_GROUPS];
+        groupStale = new boolean[NUM_GROUPS];
+        Arrays.fill(groupFree, GROUP_SIZE);
+        Arrays.fill(groupStale, true);
     }
 
+    /**
+     * Returns the free block list in its on-disk form
+     *
+     * @return Array of bytes representing the free block list
+     */
     public byte[] getFreeBlockList() {
-        return freeList;
+        byte[] list = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+
+        lockAll();
+        try {
+            for (int w = 0; w < NUM_WORDS; w++) {
+                long word = freeList[w];
+                for (int b = 0; b < Long.BYTES; b++) {
+                    list[(w * Long.BYTES) + b] = (byte) (word >>> (b * 8));
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+
+        return list;
     }
 
     /**
@@ -30,7 +111,25 @@ public class FreeBlockList {
                     " it should be of length " + Disk.BYTES_IN_FREE_SPACE_LIST);
         }
 
-        this.freeList = list;
+        lockAll();
+        try {
+            int allocated = 0;
+            Arrays.fill(groupFree, GROUP_SIZE);
+            for (int w = 0; w < NUM_WORDS; w++) {
+                long word = 0;
+                for (int b = 0; b < Long.BYTES; b++) {
+                    word |= (list[(w * Long.BYTES) + b] & 0xFFL) << (b * 8);
+                }
+                freeList[w] = word;
+                allocated += Long.bitCount(word);
+                groupFree[w / WORDS_PER_GROUP] -= Long.bitCount(word);
+            }
+            Arrays.fill(groupStale, true);
+
+            freeBlocks.set(Disk.NUM_BLOCKS - allocated);
+        } finally {
+            unlockAll();
+        }
     }
 
     /**
@@ -38,25 +137,20 @@ public class FreeBlockList {
      *
      * @param whichBlock - block to allocate
      */
-
     public void allocateBlock(int whichBlock) {
-        int blockNum = (int) (whichBlock / 8);
-        int offset = whichBlock % 8;
+        int word = whichBlock / BITS_PER_WORD;
+        long mask = 1L << (whichBlock % BITS_PER_WORD);
 
-        /**
-         * Extract the correct byte in which the block falls
-         *
-         * Blocks are arranged from 0..max_block
-         *
-         * Each block has a bit that tells whether or not the block
-         * is free (0) or taken(1).  The list of bits are grouped
-         * 8-bits at a time.  So we divide by 8 to compute the
-         * byte in which a block number falls.  We do a modulo 8
-         * to find the offset within the byte.
-         *
-         * It is assumed that block numbers begin with 0
-         */
-        freeList[blockNum] = (byte) (freeList[blockNum] | (1 << offset));
+        ReentrantLock lock = groupLocks[whichBlock / GROUP_SIZE];
+        lock.lock();
+        try {
+            if ((freeList[word] & mask) == 0) {
+                freeList[word] |= mask;
+                changed(word, -1);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -64,73 +158,553 @@ public class FreeBlockList {
      *
      * @param whichBlock - block to deallocate
      */
-    @Test
-    void testDeallocateBlockSuccessfully() {
-        // Arrange: Create a FreeBlockList and simulate an allocated block
-        FreeBlockList freeBlockList = new FreeBlockList();
-        byte[] freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
-        freeBlockList.setFreeBlockList(freeList);
+    public void deallocateBlock(int whichBlock) {
+        release(whichBlock);
+    }
 
-        int blockToAllocate = 5;
-        freeList[blockToAllocate / 8] |= (1 << (blockToAllocate % 8)); // Mark block as allocated
-        assertTrue((freeList[blockToAllocate / 8] & (1 << (blockToAllocate % 8))) != 0,
-                "Block should be allocated before deallocation");
+    /**
+     * Returns whether the block given by <code>whichBlock</code> is allocated
+     *
+     * @param whichBlock - block to check
+     * @return true if the block is in use, false if it is free
+     */
+    public boolean isBlockAllocated(int whichBlock) {
+        ReentrantLock lock = groupLocks[whichBlock / GROUP_SIZE];
+        lock.lock();
+        try {
+            return (freeList[whichBlock / BITS_PER_WORD] & (1L << (whichBlock % BITS_PER_WORD))) != 0;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // Act: Deallocate the block
-        freeBlockList.deallocateBlock(blockToAllocate);
+    /**
+     * Returns the number of blocks that are currently free, like the free
+     * column of df.  The count is maintained as blocks are allocated and
+     * freed, so this does not scan the list.
+     *
+     * @return Number of free blocks
+     */
+    public int getFreeBlockCount() {
+        return freeBlocks.get();
+    }
 
-        // Assert: Verify the block is deallocated
-        assertFalse((freeList[blockToAllocate / 8] & (1 << (blockToAllocate % 8))) != 0,
-                "Block should be deallocated");
+    /**
+     * Returns the number of free blocks in one group
+     *
+     * @param group - group number, between 0 and NUM_GROUPS - 1
+     * @return Number of free blocks in blocks
+     *         <code>group * GROUP_SIZE .. (group + 1) * GROUP_SIZE - 1</code>
+     */
+    public int freeBlocksInGroup(int group) {
+        groupLocks[group].lock();
+        try {
+            return groupFree[group];
+        } finally {
+            groupLocks[group].unlock();
+        }
     }
-private void deallocateBlocksForFile(int iNodeNumber) throws IOException {
-        // Validate the inode number
-        if (iNodeNumber < 0 || iNodeNumber >= Disk.NUM_INODES) {
-            throw new IOException("FileSystem::deallocateBlocksForFile: Invalid inode number: " + iNodeNumber);
+
+    /**
+     * Returns the length of the longest run of contiguous free blocks, the
+     * largest file that <code>allocateContiguous</code> can place in one
+     * extent.  Only the groups changed since the last call are rescanned,
+     * and the runs of the groups are then joined across group boundaries.
+     *
+     * @return Length of the longest free run, 0 if no block is free
+     */
+    public int largestExtent() {
+        int longest = 0;
+        int run = 0;
+
+        lockAll();
+        try {
+            for (int g = 0; g < NUM_GROUPS; g++) {
+                if (groupStale[g]) {
+                    summarize(g);
+                }
+                if (groupFree[g] == GROUP_SIZE) {
+                    run += GROUP_SIZE;
+                } else {
+                    longest = Math.max(longest, Math.max(run + groupLeadingFree[g], groupLongestFree[g]));
+                    run = groupTrailingFree[g];
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+
+        return Math.max(longest, run);
+    }
+
+    /**
+     * Allocates <code>numBlocks</code> free blocks.  The search starts at the
+     * word where the previous allocation ended (next-fit) and skips full
+     * words without looking at their individual bits.
+     *
+     * @param numBlocks - number of blocks to allocate
+     * @return The allocated block numbers in ascending search order, or null
+     *         if fewer than <code>numBlocks</code> blocks are free, in which
+     *         case nothing is allocated
+     */
+    public int[] allocate(int numBlocks) {
+        lockAll();
+        try {
+            return allocateNextFit(numBlocks);
+        } finally {
+            unlockAll();
         }
+    }
 
-        // Read the inode from the disk
-        INode inode = diskDevice.readInode(iNodeNumber);
-        if (inode == null) {
-            throw new IOException("FileSystem::deallocateBlocksForFile: Inode is null for inode number: " + iNodeNumber);
+    private int[] allocateNextFit(int numBlocks) {
+        if (numBlocks > freeBlocks.get()) {
+            return null;
         }
 
-        // Read the free block list from the disk
-        byte[] freeBlockList = diskDevice.readFreeBlockList();
+        int[] blocks = new int[numBlocks];
+        int count = 0;
+        int word = cursor;
+
+        while (count < numBlocks) {
+            long free = ~freeList[word];
+            int before = count;
+
+            while (free != 0 && count < numBlocks) {
+                int bit = Long.numberOfTrailingZeros(free);
+                blocks[count++] = (word * BITS_PER_WORD) + bit;
+                free &= free - 1;
+                freeList[word] |= 1L << bit;
+            }
+            if (count > before) {
+                changed(word, before - count);
+            }
 
-        // Iterate over the inode's block pointers
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockNumber = inode.getBlockPointer(i);
-            if (blockNumber == -1) {
-                // No more blocks allocated to this file, exit loop
-                break;
+            if (count < numBlocks) {
+                word = (word + 1) % NUM_WORDS;
             }
+        }
+
+        cursor = word;
+
+        return blocks;
+    }
+
+    /**
+     * Allocates <code>numBlocks</code> free blocks laid out as contiguously
+     * as possible.  The smallest run of free blocks that can hold all of them
+     * is used (best fit).  If no run is large enough, the largest runs are
+     * used so the blocks span the fewest extents.
+     *
+     * @param numBlocks - number of blocks to allocate
+     * @return The allocated block numbers, ascending within each extent and
+     *         with the extents in disk order, or null if fewer than
+     *         <code>numBlocks</code> blocks are free, in which case nothing
+     *         is allocated
+     */
+    public int[] allocateContiguous(int numBlocks) {
+        lockAll();
+        try {
+            return allocateBestFit(numBlocks);
+        } finally {
+            unlockAll();
+        }
+    }
 
-            // Calculate the byte index and bit index for the block
-            int byteIndex = blockNumber / 8;
-            int bitIndex = blockNumber % 8;
+    /**
+     * Allocates <code>numBlocks</code> free blocks as contiguously as
+     * possible, close to <code>preferredGroup</code>.  A request that fits in
+     * a group is placed in the smallest free run that holds it in the first
+     * group, from <code>preferredGroup</code> on, that has one; only that
+     * group is locked, so allocations in different groups run in parallel.
+     * Larger requests, and requests no single group can hold contiguously,
+     * are allocated from the whole list as <code>allocateContiguous</code> does.
+     *
+     * @param numBlocks - number of blocks to allocate
+     * @param preferredGroup - group to allocate in if it has room, e.g. the
+     *                         group of the file's inode
+     * @return The allocated block numbers, or null if fewer than
+     *         <code>numBlocks</code> blocks are free
+     */
+    public int[] allocateContiguous(int numBlocks, int preferredGroup) {
+        if (numBlocks > 0 && numBlocks <= GROUP_SIZE) {
+            for (int i = 0; i < NUM_GROUPS; i++) {
+                int group = (preferredGroup + i) % NUM_GROUPS;
+                if (groupFree[group] < numBlocks) {
+                    continue;
+                }
 
-            // Check if the block is already free
-            if ((freeBlockList[byteIndex] & (1 << bitIndex)) == 0) {
-                // Block is already free; log the event and continue
-                System.out.println("Block " + blockNumber + " is already free.");
-                continue;
+                groupLocks[group].lock();
+                try {
+                    int start = bestFitInGroup(group, numBlocks);
+                    if (start >= 0) {
+                        allocateRange(start, numBlocks);
+                        int[] blocks = new int[numBlocks];
+                        for (int b = 0; b < numBlocks; b++) {
+                            blocks[b] = start + b;
+                        }
+                        return blocks;
+                    }
+                } finally {
+                    groupLocks[group].unlock();
+                }
             }
+        }
 
-            // Deallocate the block by clearing its bit
-            freeBlockList[byteIndex] &= ~(1 << bitIndex);
+        return allocateContiguous(numBlocks);
+    }
 
-            // Clear the block pointer in the inode
-            inode.setBlockPointer(i, -1);
+    /**
+     * Frees the old blocks of several files and allocates each file's new
+     * blocks, as <code>allocateContiguous(numBlocks, preferredGroup)</code>
+     * does, in its own preferred group, in one step, so the new blocks may
+     * reuse the old ones.  If any file's blocks cannot be allocated, or
+     * <code>accept</code> rejects them, e.g. because the inode cannot
+     * describe that many extents, the list is left as it was and the old
+     * blocks stay the files'.  For one file with no old blocks only the
+     * groups searched are locked; otherwise the whole list is.
+     *
+     * @param oldBlocks - blocks each file gives up
+     * @param numBlocks - number of blocks to allocate for each file
+     * @param preferredGroups - group to allocate each file's blocks in if it has room
+     * @param accept - tests the blocks allocated for the file at an index before they are kept
+     * @return The allocated block numbers of each file, or null if nothing was changed
+     */
+    public int[][] replaceContiguous(int[][] oldBlocks, int[] numBlocks, int[] preferredGroups,
+                                     BiPredicate<Integer, int[]> accept) {
+        int[][] blocks = new int[numBlocks.length][];
 
-            // Log the deallocation
-            System.out.println("Block " + blockNumber + " deallocated successfully.");
+        if (numBlocks.length == 1 && oldBlocks[0].length == 0) {
+            blocks[0] = allocateContiguous(numBlocks[0], preferredGroups[0]);
+            if (blocks[0] != null && !accept.test(0, blocks[0])) {
+                free(blocks[0]);
+                return null;
+            }
+            return (blocks[0] != null) ? blocks : null;
         }
 
-        // Write the updated free block list and inode back to the disk
-        diskDevice.writeFreeBlockList(freeBlockList);
-        diskDevice.writeInode(inode, iNodeNumber);
+        lockAll();
+        try {
+            List<Integer> released = new ArrayList<>();
+            for (int[] old : oldBlocks) {
+                for (int block : old) {
+                    if (block >= 0 && release(block)) {
+                        released.add(block);
+                    }
+                }
+            }
+
+            int allocated = 0;
+            while (allocated < numBlocks.length) {
+                blocks[allocated] = allocateContiguous(numBlocks[allocated], preferredGroups[allocated]);
+                if (blocks[allocated] == null) {
+                    break;
+                }
+                if (!accept.test(allocated, blocks[allocated])) {
+                    free(blocks[allocated]);
+                    break;
+                }
+                allocated++;
+            }
+            if (allocated == numBlocks.length) {
+                return blocks;
+            }
+
+            // Put the list back as it was
+            for (int i = 0; i < allocated; i++) {
+                free(blocks[i]);
+            }
+            for (int block : released) {
+                allocateBlock(block);
+            }
+            return null;
+        } finally {
+            unlockAll();
+        }
     }
 
-    
+    private int[] allocateBestFit(int numBlocks) {
+        if (numBlocks > freeBlocks.get()) {
+            return null;
+        }
+        if (numBlocks == 0) {
+            return new int[0];
+        }
+
+        /**
+         * Best fit: the smallest free run holding all of the blocks
+         */
+        List<int[]> runs = new ArrayList<>();
+        int bestStart = -1;
+        int bestLength = Integer.MAX_VALUE;
+
+        int start = nextFreeBlock(0);
+        while (start >= 0) {
+            int end = nextUsedBlock(start);
+            int length = end - start;
+            runs.add(new int[]{start, length});
+
+            if (length >= numBlocks && length < bestLength) {
+                bestStart = start;
+                bestLength = length;
+                if (length == numBlocks) {
+                    break;
+                }
+            }
+            start = end < Disk.NUM_BLOCKS ? nextFreeBlock(end) : -1;
+        }
+
+        if (bestStart >= 0) {
+            int[] blocks = new int[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                blocks[i] = bestStart + i;
+            }
+            allocateRange(bestStart, numBlocks);
+            return blocks;
+        }
+
+        /**
+         * No single run is large enough: take the largest runs first so the
+         * file is split into as few extents as possible
+         */
+        runs.sort((a, b) -> Integer.compare(b[1], a[1]));
+
+        List<int[]> chosen = new ArrayList<>();
+        int remaining = numBlocks;
+        for (int i = 0; i < runs.size() && remaining > 0; i++) {
+            int[] run = runs.get(i);
+            int length = Math.min(run[1], remaining);
+            chosen.add(new int[]{run[0], length});
+            remaining -= length;
+        }
+        chosen.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        int[] blocks = new int[numBlocks];
+        int count = 0;
+        for (int[] extent : chosen) {
+            for (int i = 0; i < extent[1]; i++) {
+                blocks[count++] = extent[0] + i;
+            }
+            allocateRange(extent[0], extent[1]);
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Returns the given blocks to the free list.  Negative entries, such
+     * as unused inode block pointers, are ignored.
+     *
+     * @param blocks - blocks to free
+     * @return Number of blocks that were allocated and are now free
+     */
+    public int free(int[] blocks) {
+        int freed = 0;
+
+        for (int block : blocks) {
+            if (block >= 0 && release(block)) {
+                freed++;
+            }
+        }
+
+        return freed;
+    }
+
+    /**
+     * Frees one block under its group's lock
+     *
+     * @return true if the block was allocated
+     */
+    private boolean release(int whichBlock) {
+        int word = whichBlock / BITS_PER_WORD;
+        long mask = 1L << (whichBlock % BITS_PER_WORD);
+
+        ReentrantLock lock = groupLocks[whichBlock / GROUP_SIZE];
+        lock.lock();
+        try {
+            if ((freeList[word] & mask) == 0) {
+                return false;
+            }
+            freeList[word] &= ~mask;
+            changed(word, 1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : groupLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int g = NUM_GROUPS - 1; g >= 0; g--) {
+            groupLocks[g].unlock();
+        }
+    }
+
+    /**
+     * Returns the first free block at or after <code>fromBlock</code>
+     *
+     * @param fromBlock - block to start searching from
+     * @return The first free block, or -1 if there is none
+     */
+    private int nextFreeBlock(int fromBlock) {
+        return nextFreeBlock(fromBlock, Disk.NUM_BLOCKS);
+    }
+
+    /**
+     * Returns the first free block in <code>fromBlock .. toBlock - 1</code>.
+     * <code>toBlock</code> is a multiple of 64.
+     *
+     * @param fromBlock - block to start searching from
+     * @param toBlock - block to stop searching at
+     * @return The first free block, or -1 if there is none
+     */
+    private int nextFreeBlock(int fromBlock, int toBlock) {
+        int endWord = toBlock / BITS_PER_WORD;
+        int word = fromBlock / BITS_PER_WORD;
+        long free = ~freeList[word] & (-1L << (fromBlock % BITS_PER_WORD));
+
+        while (free == 0) {
+            if (++word == endWord) {
+                return -1;
+            }
+            // Full groups are skipped by their free count
+            while (word % WORDS_PER_GROUP == 0 && groupFree[word / WORDS_PER_GROUP] == 0) {
+                word += WORDS_PER_GROUP;
+                if (word >= endWord) {
+                    return -1;
+                }
+            }
+            free = ~freeList[word];
+        }
+
+        return (word * BITS_PER_WORD) + Long.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * Returns the first allocated block at or after <code>fromBlock</code>
+     *
+     * @param fromBlock - block to start searching from
+     * @return The first allocated block, or <code>Disk.NUM_BLOCKS</code> if
+     *         every remaining block is free
+     */
+    private int nextUsedBlock(int fromBlock) {
+        return nextUsedBlock(fromBlock, Disk.NUM_BLOCKS);
+    }
+
+    /**
+     * Returns the first allocated block in <code>fromBlock .. toBlock - 1</code>.
+     * <code>toBlock</code> is a multiple of 64.
+     *
+     * @param fromBlock - block to start searching from
+     * @param toBlock - block to stop searching at
+     * @return The first allocated block, or <code>toBlock</code> if every
+     *         block up to it is free
+     */
+    private int nextUsedBlock(int fromBlock, int toBlock) {
+        int endWord = toBlock / BITS_PER_WORD;
+        int word = fromBlock / BITS_PER_WORD;
+        long used = freeList[word] & (-1L << (fromBlock % BITS_PER_WORD));
+
+        while (used == 0) {
+            if (++word == endWord) {
+                return toBlock;
+            }
+            used = freeList[word];
+        }
+
+        return (word * BITS_PER_WORD) + Long.numberOfTrailingZeros(used);
+    }
+
+    /**
+     * Returns the start of the smallest free run in a group that holds
+     * <code>numBlocks</code> blocks.  The caller holds the group's lock.
+     *
+     * @return The first block of the run, or -1 if the group has none
+     */
+    private int bestFitInGroup(int group, int numBlocks) {
+        int end = (group + 1) * GROUP_SIZE;
+        int bestStart = -1;
+        int bestLength = Integer.MAX_VALUE;
+
+        int start = nextFreeBlock(group * GROUP_SIZE, end);
+        while (start >= 0) {
+            int runEnd = nextUsedBlock(start, end);
+            int length = runEnd - start;
+            if (length >= numBlocks && length < bestLength) {
+                bestStart = start;
+                bestLength = length;
+                if (length == numBlocks) {
+                    break;
+                }
+            }
+            start = runEnd < end ? nextFreeBlock(runEnd, end) : -1;
+        }
+
+        return bestStart;
+    }
+
+    /**
+     * Records that the free count of the group holding <code>word</code>
+     * changed by <code>delta</code>.  The caller holds the group's lock.
+     */
+    private void changed(int word, int delta) {
+        int group = word / WORDS_PER_GROUP;
+        groupFree[group] += delta;
+        groupStale[group] = true;
+        freeBlocks.addAndGet(delta);
+    }
+
+    /**
+     * Recomputes the free runs at the start and end of a group and the
+     * longest free run inside it
+     */
+    private void summarize(int group) {
+        int first = group * GROUP_SIZE;
+        int end = first + GROUP_SIZE;
+        int leading = 0;
+        int trailing = 0;
+        int longest = 0;
+
+        int start = nextFreeBlock(first, end);
+        while (start >= 0) {
+            int runEnd = nextUsedBlock(start, end);
+            int length = runEnd - start;
+            if (start == first) {
+                leading = length;
+            }
+            if (runEnd == end) {
+                trailing = length;
+            }
+            longest = Math.max(longest, length);
+            start = runEnd < end ? nextFreeBlock(runEnd, end) : -1;
+        }
+
+        groupLeadingFree[group] = leading;
+        groupTrailingFree[group] = trailing;
+        groupLongestFree[group] = longest;
+        groupStale[group] = false;
+    }
+
+    /**
+     * Marks the free blocks <code>firstBlock .. firstBlock + numBlocks - 1</code>
+     * as allocated.  The caller holds the lock of every group they are in.
+     */
+    private void allocateRange(int firstBlock, int numBlocks) {
+        int block = firstBlock;
+        int end = firstBlock + numBlocks;
+
+        while (block < end) {
+            int bit = block % BITS_PER_WORD;
+            int bits = Math.min(BITS_PER_WORD - bit, end - block);
+            long mask = (bits == BITS_PER_WORD) ? -1L : ((1L << bits) - 1) << bit;
+
+            freeList[block / BITS_PER_WORD] |= mask;
+            changed(block / BITS_PER_WORD, -bits);
+            block += bits;
+        }
+    }
 }
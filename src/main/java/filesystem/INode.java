@@ -1,5 +1,6 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
 
 public class INode {
     public final static int NUM_BLOCK_POINTERS = 32;
@@ -9,18 +10,58 @@ public class INode {
 
     /**
      * File name size + size(integer) + size(integer  * number_of_block_addresses
+     *
+     * The integer sizes are in bits, so this is the slot size of layout
+     * version 1 rather than the size of an inode; see ENCODED_SIZE and
+     * <code>Disk.COMPACT_INODE_SIZE</code>.
      */
     public final static int INODE_SIZE = FILE_NAME_SIZE +
             Integer.SIZE +
             (Integer.SIZE * NUM_BLOCK_POINTERS);
 
+    /**
+     * The first NUM_DIRECT_POINTERS block pointers point at data blocks.
+     * The pointer at SINGLE_INDIRECT points at a block of
+     * POINTERS_PER_BLOCK data block pointers, and the pointer at
+     * DOUBLE_INDIRECT at a block of pointers to such blocks.
+     */
+    public final static int NUM_DIRECT_POINTERS = NUM_BLOCK_POINTERS - 2;
+    public final static int SINGLE_INDIRECT = NUM_DIRECT_POINTERS;
+    public final static int DOUBLE_INDIRECT = NUM_DIRECT_POINTERS + 1;
+    public final static int POINTERS_PER_BLOCK = Disk.BLOCK_SIZE / Integer.BYTES;
+
+    /**
+     * Largest file an inode can describe, in data blocks and in bytes
+     */
+    public final static int MAX_FILE_BLOCKS = NUM_DIRECT_POINTERS +
+            POINTERS_PER_BLOCK +
+            (POINTERS_PER_BLOCK * POINTERS_PER_BLOCK);
+    public final static int MAX_FILE_SIZE = MAX_FILE_BLOCKS * Disk.BLOCK_SIZE;
+
+    /**
+     * Number of bytes an inode's fields take up when encoded
+     */
+    public final static int ENCODED_SIZE = FILE_NAME_SIZE +
+            Integer.BYTES +
+            (Integer.BYTES * NUM_BLOCK_POINTERS);
+
+    private static final byte[] EMPTY_NAME = new byte[FILE_NAME_SIZE];
+
     private String fileName;
     private int fileSize;
     private int[] blockPointers;
 
+    /**
+     * The name encoded as it is stored on disk, zero padded to
+     * FILE_NAME_SIZE bytes.  Kept alongside the name so encoding the
+     * inode allocates nothing; never modified once set.
+     */
+    private byte[] fileNameBytes;
+
 
     public INode() {
         fileName = null;
+        fileNameBytes = EMPTY_NAME;
         fileSize = -1;
         blockPointers = new int[NUM_BLOCK_POINTERS];
         for (int i = 0; i < blockPointers.length; i++) {
@@ -28,6 +69,18 @@ public class INode {
         }
     }
 
+    /**
+     * Creates a copy of <code>other</code>
+     *
+     * @param other INode to copy
+     */
+    public INode(INode other) {
+        fileName = other.fileName;
+        fileNameBytes = other.fileNameBytes;
+        fileSize = other.fileSize;
+        blockPointers = other.blockPointers.clone();
+    }
+
     /**
      * Sets the size of the file in bytes
      *
@@ -65,13 +118,19 @@ public class INode {
      *                                  allowed length of 64 bytes
      */
     public void setFileName(String name) throws IllegalArgumentException {
+        byte[] nameBytes = EMPTY_NAME;
+
         if (name != null) {
-            if (name.length() > INode.FILE_NAME_SIZE) {
+            byte[] contents = name.getBytes();
+            if (name.length() > INode.FILE_NAME_SIZE || contents.length > INode.FILE_NAME_SIZE) {
                 throw new IllegalArgumentException("INode::setFileName:  " +
                         "size exceeds " + INode.FILE_NAME_SIZE + " bytes");
             }
+            nameBytes = new byte[FILE_NAME_SIZE];
+            System.arraycopy(contents, 0, nameBytes, 0, contents.length);
         }
         this.fileName = name;
+        this.fileNameBytes = nameBytes;
     }
 
     /**
@@ -87,22 +146,7 @@ public class INode {
      * @return Returns the name of the file name as a byte array
      */
     public byte[] getFileNameBytes() {
-        byte[] result = null;
-        byte[] contents = null;
-
-        result = new byte[FILE_NAME_SIZE];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = 0;
-        }
-
-        if (fileName != null) {
-            contents = fileName.getBytes();
-            for (int i = 0; i < contents.length; i++) {
-                result[i] = contents[i];
-            }
-        }
-
-        return result;
+        return fileNameBytes.clone();
     }
 
     /**
@@ -166,6 +210,74 @@ public class INode {
                 (byte) result
         };
     }
-}
 
+    /**
+     * Encodes the inode into <code>dst</code> at its position: the name
+     * bytes, then the size and each block pointer as big-endian integers.
+     * Nothing is allocated, so one buffer can be reused for every inode.
+     *
+     * @param dst Buffer receiving ENCODED_SIZE bytes
+     * @throws java.nio.BufferOverflowException If <code>dst</code> has less
+     *                                          than ENCODED_SIZE bytes remaining
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.put(fileNameBytes);
+        dst.putInt(fileSize);
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            dst.putInt(blockPointers[i]);
+        }
+    }
+
+    /**
+     * Decodes an inode written by <code>writeTo</code> from <code>src</code>
+     * at its position.  A name whose bytes sum to zero or less is read as no
+     * name, since an all zero name field marks an unused inode.
+     *
+     * @param src Buffer holding ENCODED_SIZE bytes
+     * @return The decoded inode
+     * @throws java.nio.BufferUnderflowException If <code>src</code> has less
+     *                                           than ENCODED_SIZE bytes remaining
+     */
+    public static INode readFrom(ByteBuffer src) {
+        INode inode = new INode();
+
+        byte[] nameBytes = new byte[FILE_NAME_SIZE];
+        src.get(nameBytes);
+
+        int nameSum = 0;
+        for (int i = 0; i < nameBytes.length; i++) {
+            nameSum += nameBytes[i];
+        }
+        if (nameSum > 0) {
+            inode.fileName = new String(nameBytes);
+            inode.fileNameBytes = nameBytes;
+        }
+
+        inode.fileSize = src.getInt();
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            inode.blockPointers[i] = src.getInt();
+        }
 
+        return inode;
+    }
+
+    /**
+     * Returns the number of indirect blocks a file of <code>numBlocks</code>
+     * data blocks needs
+     *
+     * @param numBlocks Number of data blocks in the file
+     * @return Number of single and double indirect blocks needed
+     */
+    public static int indirectBlocksFor(int numBlocks) {
+        int beyond = numBlocks - NUM_DIRECT_POINTERS;
+        if (beyond <= 0) {
+            return 0;
+        }
+        if (beyond <= POINTERS_PER_BLOCK) {
+            return 1;
+        }
+
+        beyond -= POINTERS_PER_BLOCK;
+        return 2 + ((beyond + POINTERS_PER_BLOCK - 1) / POINTERS_PER_BLOCK);
+    }
+}
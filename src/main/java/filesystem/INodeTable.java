@@ -0,0 +1,152 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The whole inode list held in flat arrays indexed by inode number: the
+ * name bytes, the size and the block pointers of every inode.  Reading a
+ * field allocates nothing; an <code>INode</code> is only built when one is
+ * asked for.
+ *
+ * The table does no locking.  Different inodes occupy separate parts of the
+ * arrays, so callers only need to keep accesses to the same inode apart.
+ */
+public class INodeTable {
+    private final byte[] names;
+    private final int[] sizes;
+    private final int[] blockPointers;
+
+    /**
+     * Inodes whose name is set, i.e. that hold a file.  A boolean per inode
+     * rather than a bit, so updates to different inodes never share a word.
+     */
+    private final boolean[] inUse;
+
+    /**
+     * Creates a table of empty inodes
+     */
+    public INodeTable() {
+        names = new byte[Disk.NUM_INODES * INode.FILE_NAME_SIZE];
+        sizes = new int[Disk.NUM_INODES];
+        blockPointers = new int[Disk.NUM_INODES * INode.NUM_BLOCK_POINTERS];
+        inUse = new boolean[Disk.NUM_INODES];
+
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            setINode(i, new INode());
+        }
+    }
+
+    /**
+     * Returns whether the inode holds a file
+     *
+     * @param whichInode - inode number
+     * @return true if the inode's name is set
+     */
+    public boolean isInUse(int whichInode) {
+        return inUse[whichInode];
+    }
+
+    /**
+     * Returns the name of the file held by an inode
+     *
+     * @param whichInode - inode number
+     * @return The file name, or null if the inode is not in use
+     */
+    public String getFileName(int whichInode) {
+        if (!inUse[whichInode]) {
+            return null;
+        }
+        return new String(names, whichInode * INode.FILE_NAME_SIZE, INode.FILE_NAME_SIZE);
+    }
+
+    /**
+     * Returns the size field of an inode
+     *
+     * @param whichInode - inode number
+     * @return Size of the file in bytes
+     */
+    public int getSize(int whichInode) {
+        return sizes[whichInode];
+    }
+
+    /**
+     * Returns one block pointer of an inode
+     *
+     * @param whichInode - inode number
+     * @param whichOne - position in the inode's block pointer list
+     * @return The block pointer, or -1 if unused
+     */
+    public int getBlockPointer(int whichInode, int whichOne) {
+        return blockPointers[(whichInode * INode.NUM_BLOCK_POINTERS) + whichOne];
+    }
+
+    /**
+     * Builds an <code>INode</code> holding the fields of an inode
+     *
+     * @param whichInode - inode number
+     * @return A new INode; changing it does not change the table
+     */
+    public INode getINode(int whichInode) {
+        INode inode = new INode();
+
+        inode.setFileName(getFileName(whichInode));
+        inode.setSize(sizes[whichInode]);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, getBlockPointer(whichInode, i));
+        }
+
+        return inode;
+    }
+
+    /**
+     * Replaces the fields of an inode with those of <code>inode</code>
+     *
+     * @param whichInode - inode number
+     * @param inode - new contents of the inode
+     */
+    public void setINode(int whichInode, INode inode) {
+        System.arraycopy(inode.getFileNameBytes(), 0,
+                names, whichInode * INode.FILE_NAME_SIZE, INode.FILE_NAME_SIZE);
+        sizes[whichInode] = inode.getSize();
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            blockPointers[(whichInode * INode.NUM_BLOCK_POINTERS) + i] = inode.getBlockPointer(i);
+        }
+        updateInUse(whichInode);
+    }
+
+    /**
+     * Decodes an inode from its on-disk form: the name bytes, then the size
+     * and the block pointers as big-endian integers
+     *
+     * @param whichInode - inode number
+     * @param src - buffer holding the inode
+     * @param offset - position of the inode in <code>src</code>
+     */
+    void load(int whichInode, ByteBuffer src, int offset) {
+        src.get(offset, names, whichInode * INode.FILE_NAME_SIZE, INode.FILE_NAME_SIZE);
+        offset += INode.FILE_NAME_SIZE;
+
+        sizes[whichInode] = src.getInt(offset);
+        offset += Integer.BYTES;
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            blockPointers[(whichInode * INode.NUM_BLOCK_POINTERS) + i] = src.getInt(offset);
+            offset += Integer.BYTES;
+        }
+        updateInUse(whichInode);
+    }
+
+    /**
+     * A name whose bytes sum to zero or less reads as no name, the same
+     * rule <code>Disk.readInode</code> applies
+     */
+    private void updateInUse(int whichInode) {
+        int nameSum = 0;
+        int start = whichInode * INode.FILE_NAME_SIZE;
+        for (int i = start; i < start + INode.FILE_NAME_SIZE; i++) {
+            nameSum += names[i];
+        }
+        inUse[whichInode] = nameSum > 0;
+    }
+}
@@ -0,0 +1,314 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+
+/**
+ * Maps the block indexes of a file to disk blocks through the file's inode,
+ * following its single and double indirect blocks past the direct block
+ * pointers.  This is the default inode format.
+ *
+ * Indirect blocks are held in a bounded LRU cache, so reading a large file
+ * sequentially reads each indirect block from disk once, i.e. one metadata
+ * read per POINTERS_PER_BLOCK data blocks.  Changed indirect blocks are
+ * written through to disk.  The cache synchronizes on itself; an indirect
+ * block's contents are guarded by the lock of the inode that owns it.
+ */
+class IndirectBlockMap implements BlockMap {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int D = INode.NUM_DIRECT_POINTERS;
+    private static final int P = INode.POINTERS_PER_BLOCK;
+
+    private final Disk disk;
+    private final Map<Integer, int[]> cache;
+
+    IndirectBlockMap(Disk disk) {
+        this(disk, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param disk - disk holding the indirect blocks
+     * @param capacity - maximum number of indirect blocks held in memory
+     */
+    IndirectBlockMap(Disk disk, int capacity) {
+        this.disk = disk;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public int[] lookup(INode inode, int first, int count) throws IOException {
+        int[] blocks = new int[count];
+        int i = 0;
+
+        while (i < count) {
+            int index = first + i;
+            if (index < D) {
+                blocks[i++] = inode.getBlockPointer(index);
+                continue;
+            }
+
+            // Every pointer held by the same indirect block is copied at once
+            int n = Math.min(count - i, P - slotOf(index));
+            int pointerBlock = pointerBlockFor(inode, index, null);
+            if (pointerBlock == -1) {
+                Arrays.fill(blocks, i, i + n, -1);
+            } else {
+                System.arraycopy(load(pointerBlock), slotOf(index), blocks, i, n);
+            }
+            i += n;
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Indirect blocks the file does not have yet are taken from
+     * <code>indirectBlocks</code>
+     */
+    @Override
+    public void assign(INode inode, int first, int[] blocks, int[] indirectBlocks) throws IOException {
+        PrimitiveIterator.OfInt spare = Arrays.stream(indirectBlocks).iterator();
+        int i = 0;
+
+        while (i < blocks.length) {
+            int index = first + i;
+            if (index < D) {
+                inode.setBlockPointer(index, blocks[i++]);
+                continue;
+            }
+
+            int n = Math.min(blocks.length - i, P - slotOf(index));
+            int pointerBlock = pointerBlockFor(inode, index, spare);
+            int[] pointers = load(pointerBlock);
+
+            System.arraycopy(blocks, i, pointers, slotOf(index), n);
+            store(pointerBlock, pointers);
+            i += n;
+        }
+    }
+
+    @Override
+    public boolean canAssign(INode inode, int first, int[] blocks) {
+        return first + blocks.length <= INode.MAX_FILE_BLOCKS;
+    }
+
+    /**
+     * Only pointers to blocks inside the file's size are counted.  Indirect
+     * blocks are written in place, so after a crash they can still point at
+     * blocks past the committed size that were never committed to this file
+     * and may belong to another one.
+     */
+    @Override
+    public int[] heldBlocks(INode inode) throws IOException {
+        int n = (int) Math.ceil((double) Math.max(inode.getSize(), 0) / Disk.BLOCK_SIZE);
+        int[] held = new int[INode.MAX_FILE_BLOCKS + INode.indirectBlocksFor(INode.MAX_FILE_BLOCKS)];
+        int count = 0;
+
+        for (int i = 0; i < Math.min(D, n); i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                held[count++] = inode.getBlockPointer(i);
+            }
+        }
+
+        int single = inode.getBlockPointer(INode.SINGLE_INDIRECT);
+        if (single != -1) {
+            count = addPointerBlock(single, n - D, held, count);
+        }
+
+        int dbl = inode.getBlockPointer(INode.DOUBLE_INDIRECT);
+        if (dbl != -1) {
+            int rest = n - D - P;
+            int[] children = load(dbl);
+            for (int c = 0; c < P && c * P < rest; c++) {
+                if (children[c] != -1) {
+                    count = addPointerBlock(children[c], rest - c * P, held, count);
+                }
+            }
+            held[count++] = dbl;
+        }
+
+        return Arrays.copyOf(held, count);
+    }
+
+    @Override
+    public int[] release(INode inode) throws IOException {
+        int[] held = heldBlocks(inode);
+
+        // The indirect blocks are no longer the file's, so they leave the cache
+        int single = inode.getBlockPointer(INode.SINGLE_INDIRECT);
+        if (single != -1) {
+            evict(single);
+        }
+        int dbl = inode.getBlockPointer(INode.DOUBLE_INDIRECT);
+        if (dbl != -1) {
+            for (int child : load(dbl)) {
+                if (child != -1) {
+                    evict(child);
+                }
+            }
+            evict(dbl);
+        }
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, -1);
+        }
+
+        return held;
+    }
+
+    @Override
+    public int[] inodeBlocks(INode inode) {
+        int[] blocks = new int[INode.NUM_BLOCK_POINTERS];
+        int count = 0;
+
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                blocks[count++] = inode.getBlockPointer(i);
+            }
+        }
+
+        return Arrays.copyOf(blocks, count);
+    }
+
+    @Override
+    public int metadataBlocksFor(int numBlocks) {
+        return INode.indirectBlocksFor(numBlocks);
+    }
+
+    @Override
+    public int maxFileBlocks() {
+        return INode.MAX_FILE_BLOCKS;
+    }
+
+    /**
+     * Adds an indirect block and the first <code>used</code> data blocks it
+     * points to to <code>held</code>
+     */
+    private int addPointerBlock(int pointerBlock, int used, int[] held, int count) throws IOException {
+        int[] pointers = load(pointerBlock);
+        for (int i = 0; i < Math.min(P, used); i++) {
+            if (pointers[i] != -1) {
+                held[count++] = pointers[i];
+            }
+        }
+        held[count++] = pointerBlock;
+
+        return count;
+    }
+
+    /**
+     * Returns the indirect block holding the pointer for file block
+     * <code>index</code>, creating missing indirect blocks from
+     * <code>spare</code>
+     *
+     * @param inode - the file's inode
+     * @param index - index of a block past the direct block pointers
+     * @param spare - free blocks for new indirect blocks, or null to only look up
+     * @return The indirect block, or -1 if it does not exist and
+     *         <code>spare</code> is null
+     * @throws IOException If an indirect block cannot be read or written
+     */
+    private int pointerBlockFor(INode inode, int index, PrimitiveIterator.OfInt spare) throws IOException {
+        int relative = index - D;
+
+        if (relative < P) {
+            return child(inode, INode.SINGLE_INDIRECT, spare);
+        }
+
+        int dbl = child(inode, INode.DOUBLE_INDIRECT, spare);
+        if (dbl == -1) {
+            return -1;
+        }
+
+        int[] children = load(dbl);
+        int which = (relative - P) / P;
+        if (children[which] == -1 && spare != null) {
+            children[which] = create(spare.nextInt());
+            store(dbl, children);
+        }
+
+        return children[which];
+    }
+
+    /**
+     * Returns the indirect block an inode pointer points at, creating it
+     * from <code>spare</code> if it is missing
+     */
+    private int child(INode inode, int whichPointer, PrimitiveIterator.OfInt spare) throws IOException {
+        int block = inode.getBlockPointer(whichPointer);
+        if (block == -1 && spare != null) {
+            block = create(spare.nextInt());
+            inode.setBlockPointer(whichPointer, block);
+        }
+        return block;
+    }
+
+    /**
+     * Position of the pointer for file block <code>index</code> within its
+     * indirect block
+     */
+    private static int slotOf(int index) {
+        return (index - D) % P;
+    }
+
+    /**
+     * Writes out a new, empty indirect block
+     */
+    private int create(int pointerBlock) throws IOException {
+        int[] pointers = new int[P];
+        Arrays.fill(pointers, -1);
+        store(pointerBlock, pointers);
+        return pointerBlock;
+    }
+
+    /**
+     * Returns the pointers held by an indirect block, reading it from disk
+     * if it is not cached
+     */
+    private int[] load(int pointerBlock) throws IOException {
+        synchronized (cache) {
+            int[] pointers = cache.get(pointerBlock);
+            if (pointers != null) {
+                return pointers;
+            }
+        }
+
+        int[] pointers = new int[P];
+        ByteBuffer.wrap(disk.readDataBlock(pointerBlock)).asIntBuffer().get(pointers);
+
+        synchronized (cache) {
+            cache.put(pointerBlock, pointers);
+        }
+        return pointers;
+    }
+
+    /**
+     * Writes an indirect block through to disk and keeps it cached
+     */
+    private void store(int pointerBlock, int[] pointers) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+        data.asIntBuffer().put(pointers);
+        disk.writeDataBlock(data.array(), pointerBlock);
+
+        synchronized (cache) {
+            cache.put(pointerBlock, pointers);
+        }
+    }
+
+    private void evict(int pointerBlock) {
+        synchronized (cache) {
+            cache.remove(pointerBlock);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * Write-ahead journal for metadata: inodes and the free block list.
+ *
+ * Inode updates are gathered in memory into the open transaction.  A
+ * transaction also carries the free block list as it stands when the
+ * transaction is closed, which includes every allocation made for the
+ * inodes in it.  Blocks that the transaction's inodes give up are handed to
+ * <code>freeAfterCommit</code> and stay allocated in memory until the
+ * transaction commits, so they are not reused, and their contents not
+ * overwritten, while the inodes on disk may still point at them; the free
+ * block list logged with the transaction has them freed.  Blocks allocated
+ * by operations whose inodes are not logged yet are logged as in use, so a
+ * crash can leak them but never hand one block to two files.
+ *
+ * A commit first forces the data written so far, then writes the whole
+ * transaction to the journal region with one write, forces the disk again,
+ * and only then writes the metadata in place and frees the blocks the
+ * transaction gave up.  The data is thus durable before any metadata that
+ * points at it.  Each commit covers every update made
+ * since the previous one, so many operations share one force (group
+ * commit): a thread calling <code>commit()</code> while another thread's
+ * commit is in progress waits for it, and then commits everything that
+ * arrived in the meantime at once.
+ *
+ * Journal region layout: a header holding the sequence number of the first
+ * transaction in the journal, followed by transactions.  A transaction is
+ * a header (magic, sequence number, record count, payload length, CRC-32
+ * of the payload) and its records (type, target, bytes).  Records hold
+ * whole inodes and the whole free block list, so replaying a transaction
+ * twice gives the same result.  When the journal is full, the in-place
+ * writes are forced and the journal starts over.
+ */
+class Journal {
+    public static final int DEFAULT_GROUP_SIZE = 32;
+
+    private static final int HEADER_MAGIC = 0x4A524E4C;
+    private static final int TXN_MAGIC = 0x54584E31;
+    private static final int HEADER_SIZE = Disk.BLOCK_SIZE;
+    private static final int TXN_HEADER_SIZE = Integer.BYTES + Long.BYTES + (3 * Integer.BYTES);
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private static final int RECORD_INODE = 1;
+    private static final int RECORD_FREE_LIST = 2;
+
+    private final Disk disk;
+    private final FreeBlockList freeList;
+    private final int groupSize;
+
+    /**
+     * The open transaction: latest image of each changed inode, in inode
+     * order.  Guarded by <code>this</code>.
+     */
+    private Map<Integer, byte[]> pendingInodes = new TreeMap<>();
+    private int pendingOperations;
+
+    /**
+     * Blocks given up by the inodes of the open transaction, freed when it
+     * commits.  Guarded by <code>this</code>.
+     */
+    private List<int[]> pendingFrees = new ArrayList<>();
+    private int pendingFreeCount;
+
+    /**
+     * Sequence number the open transaction will commit under
+     */
+    private long openSequence;
+
+    /**
+     * Commit state, guarded by <code>commitLock</code>: the last sequence
+     * number made durable and where the next transaction goes
+     */
+    private final Object commitLock = new Object();
+    private long committedSequence;
+    private long tail;
+    private long commits;
+
+    Journal(Disk disk, FreeBlockList freeList) {
+        this(disk, freeList, DEFAULT_GROUP_SIZE);
+    }
+
+    /**
+     * @param disk - journaled disk
+     * @param freeList - in-memory free block list, logged with every transaction
+     * @param groupSize - number of operations after which
+     *                    <code>endOperation</code> asks for a commit
+     */
+    Journal(Disk disk, FreeBlockList freeList, int groupSize) {
+        this.disk = disk;
+        this.freeList = freeList;
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Adds an inode to the open transaction
+     *
+     * @param whichInode - inode number
+     * @param inode - new contents of the inode
+     */
+    synchronized void logInode(int whichInode, INode inode) {
+        ByteBuffer image = ByteBuffer.allocate(INode.ENCODED_SIZE);
+        inode.writeTo(image);
+        pendingInodes.put(whichInode, image.array());
+    }
+
+    /**
+     * Frees blocks once the open transaction commits.  Called after the
+     * inodes that no longer point at the blocks have been logged, so those
+     * inodes commit no later than the blocks are freed.
+     *
+     * @param blocks - blocks given up; negative entries are ignored
+     */
+    synchronized void freeAfterCommit(int[] blocks) {
+        if (blocks.length > 0) {
+            pendingFrees.add(blocks);
+            pendingFreeCount += blocks.length;
+        }
+    }
+
+    /**
+     * Returns the number of blocks waiting for a commit to be freed
+     *
+     * @return Number of blocks the next commit frees
+     */
+    synchronized int pendingFreeCount() {
+        return pendingFreeCount;
+    }
+
+    /**
+     * Counts a completed file system operation
+     *
+     * @return true once enough operations are waiting that the caller should commit
+     */
+    synchronized boolean endOperation() {
+        return ++pendingOperations >= groupSize;
+    }
+
+    /**
+     * Returns the number of transactions committed
+     *
+     * @return Number of commits, each of which forced the disk once
+     */
+    long getCommitCount() {
+        synchronized (commitLock) {
+            return commits;
+        }
+    }
+
+    /**
+     * Makes every update logged before the call durable.  If another
+     * thread's commit already covered them, returns without writing.
+     *
+     * @return true if the disk was forced, false if there was nothing to commit
+     * @throws IOException If the journal or the disk cannot be written
+     */
+    boolean commit() throws IOException {
+        long target;
+        synchronized (this) {
+            target = openSequence;
+        }
+
+        synchronized (commitLock) {
+            if (committedSequence > target) {
+                return true;
+            }
+
+            // Close the open transaction; later updates go into the next one
+            Map<Integer, byte[]> inodes;
+            List<int[]> frees;
+            byte[] freeList;
+            long sequence;
+            synchronized (this) {
+                if (pendingInodes.isEmpty() && pendingFrees.isEmpty()) {
+                    return false;
+                }
+                inodes = pendingInodes;
+                frees = pendingFrees;
+                freeList = this.freeList.getFreeBlockList();
+                sequence = openSequence++;
+                pendingInodes = new TreeMap<>();
+                pendingFrees = new ArrayList<>();
+                pendingFreeCount = 0;
+                pendingOperations = 0;
+            }
+
+            // The logged free list has the transaction's blocks freed
+            for (int[] blocks : frees) {
+                for (int block : blocks) {
+                    if (block >= 0) {
+                        freeList[block / 8] &= (byte) ~(1 << (block % 8));
+                    }
+                }
+            }
+
+            ByteBuffer txn = encode(sequence, inodes, freeList);
+
+            // The data the inodes point at is made durable before the transaction is
+            disk.force();
+            if (tail + txn.remaining() > Disk.JOURNAL_SIZE) {
+                checkpoint(sequence);
+            }
+            disk.writeJournal(txn, tail);
+            tail += txn.limit();
+            disk.force();
+
+            // The transaction is durable; the metadata can now be written in place
+            apply(inodes, freeList);
+            for (int[] blocks : frees) {
+                this.freeList.free(blocks);
+            }
+            commits++;
+
+            committedSequence = sequence + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Writes the metadata of every complete transaction in the journal in
+     * place, then starts the journal over.  Called when the disk is
+     * mounted, before any metadata is read.
+     *
+     * @throws IOException If the journal or the disk cannot be read or written
+     */
+    void replay() throws IOException {
+        synchronized (commitLock) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            disk.readJournal(header, 0);
+
+            long sequence = 0;
+            if (header.getInt(0) == HEADER_MAGIC) {
+                sequence = header.getLong(Integer.BYTES);
+                long position = HEADER_SIZE;
+
+                ByteBuffer txn;
+                while ((txn = readTransaction(position, sequence)) != null) {
+                    Map<Integer, byte[]> inodes = new TreeMap<>();
+                    byte[] freeList = decode(txn, inodes);
+                    apply(inodes, freeList);
+
+                    position += txn.limit();
+                    sequence++;
+                }
+            }
+
+            checkpoint(sequence);
+            synchronized (this) {
+                openSequence = sequence;
+            }
+            committedSequence = sequence;
+        }
+    }
+
+    /**
+     * Forces the in-place metadata writes made so far, then empties the
+     * journal so the next transaction, <code>nextSequence</code>, is
+     * written at its start
+     */
+    private void checkpoint(long nextSequence) throws IOException {
+        disk.force();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, HEADER_MAGIC);
+        header.putLong(Integer.BYTES, nextSequence);
+        disk.writeJournal(header, 0);
+        disk.force();
+
+        tail = HEADER_SIZE;
+    }
+
+    /**
+     * Reads the transaction at <code>position</code>
+     *
+     * @return The whole transaction, or null if there is no complete
+     *         transaction with sequence number <code>sequence</code> there
+     */
+    private ByteBuffer readTransaction(long position, long sequence) throws IOException {
+        if (position + TXN_HEADER_SIZE > Disk.JOURNAL_SIZE) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(TXN_HEADER_SIZE);
+        disk.readJournal(header, position);
+        header.flip();
+
+        if (header.getInt() != TXN_MAGIC || header.getLong() != sequence) {
+            return null;
+        }
+        int records = header.getInt();
+        int payloadLength = header.getInt();
+        int checksum = header.getInt();
+        if (records < 0 || payloadLength < 0 || position + TXN_HEADER_SIZE + payloadLength > Disk.JOURNAL_SIZE) {
+            return null;
+        }
+
+        ByteBuffer txn = ByteBuffer.allocate(TXN_HEADER_SIZE + payloadLength);
+        disk.readJournal(txn, position);
+
+        CRC32 crc = new CRC32();
+        crc.update(txn.array(), TXN_HEADER_SIZE, payloadLength);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        txn.flip();
+        return txn;
+    }
+
+    /**
+     * Encodes a transaction ready to be written to the journal
+     */
+    private static ByteBuffer encode(long sequence, Map<Integer, byte[]> inodes, byte[] freeList) {
+        int records = inodes.size() + (freeList != null ? 1 : 0);
+        int payloadLength = (inodes.size() * (RECORD_HEADER_SIZE + INode.ENCODED_SIZE)) +
+                (freeList != null ? RECORD_HEADER_SIZE + freeList.length : 0);
+
+        ByteBuffer txn = ByteBuffer.allocate(TXN_HEADER_SIZE + payloadLength);
+        txn.position(TXN_HEADER_SIZE);
+        for (Map.Entry<Integer, byte[]> inode : inodes.entrySet()) {
+            txn.putInt(RECORD_INODE);
+            txn.putInt(inode.getKey());
+            txn.put(inode.getValue());
+        }
+        if (freeList != null) {
+            txn.putInt(RECORD_FREE_LIST);
+            txn.putInt(0);
+            txn.put(freeList);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(txn.array(), TXN_HEADER_SIZE, payloadLength);
+
+        txn.putInt(0, TXN_MAGIC);
+        txn.putLong(Integer.BYTES, sequence);
+        txn.putInt(Integer.BYTES + Long.BYTES, records);
+        txn.putInt((2 * Integer.BYTES) + Long.BYTES, payloadLength);
+        txn.putInt((3 * Integer.BYTES) + Long.BYTES, (int) crc.getValue());
+
+        txn.flip();
+        return txn;
+    }
+
+    /**
+     * Decodes the records of a transaction read by <code>readTransaction</code>
+     *
+     * @param txn - the transaction
+     * @param inodes - receives the inode records
+     * @return The free block list record, or null if there is none
+     */
+    private static byte[] decode(ByteBuffer txn, Map<Integer, byte[]> inodes) {
+        txn.position(Integer.BYTES + Long.BYTES);
+        int records = txn.getInt();
+        txn.position(TXN_HEADER_SIZE);
+
+        byte[] freeList = null;
+        for (int i = 0; i < records; i++) {
+            int type = txn.getInt();
+            int target = txn.getInt();
+            if (type == RECORD_INODE) {
+                byte[] image = new byte[INode.ENCODED_SIZE];
+                txn.get(image);
+                inodes.put(target, image);
+            } else {
+                freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+                txn.get(freeList);
+            }
+        }
+
+        return freeList;
+    }
+
+    /**
+     * Writes journaled metadata in place
+     */
+    private void apply(Map<Integer, byte[]> inodes, byte[] freeList) throws IOException {
+        for (Map.Entry<Integer, byte[]> inode : inodes.entrySet()) {
+            disk.writeInode(INode.readFrom(ByteBuffer.wrap(inode.getValue())), inode.getKey());
+        }
+        if (freeList != null) {
+            disk.writeFreeBlockList(freeList);
+        }
+    }
+}
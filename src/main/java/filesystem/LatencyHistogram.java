@@ -0,0 +1,170 @@
+package filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the
+ * style of HdrHistogram: values below 2^SUB_BUCKET_BITS get a bucket each,
+ * and every larger power of two is split into 2^SUB_BUCKET_BITS buckets.
+ * Any value is therefore counted within 1/16 (6.25%) of itself, using a
+ * fixed array of counters.
+ *
+ * Recording is lock-free and allocates nothing, so many threads may record
+ * at once.  A snapshot is taken without stopping them, so it may miss
+ * values recorded while it is being taken.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts one value
+     *
+     * @param nanos - latency in nanoseconds; negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Clears every count
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Copies the current counts
+     *
+     * @return A snapshot that later recording does not change
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.sum(), total.sum(), max.get());
+    }
+
+    /**
+     * Index of the bucket counting <code>value</code>.  The bucket is chosen
+     * by the highest set bit of the value and the SUB_BUCKET_BITS bits below it.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift * SUB_BUCKETS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Largest value counted in a bucket
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket / SUB_BUCKETS) - 1;
+        long top = (bucket % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one point in time
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * @return Number of values recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Sum of the values recorded, in nanoseconds
+         */
+        public long getTotalNanos() {
+            return total;
+        }
+
+        /**
+         * @return Mean value, or 0 if none was recorded
+         */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * @return Largest value recorded
+         */
+        public long getMaxNanos() {
+            return max;
+        }
+
+        /**
+         * Returns the value at or below which <code>percentile</code> percent
+         * of the recorded values fall, rounded up to the top of its bucket
+         *
+         * @param percentile - between 0 and 100
+         * @return The value in nanoseconds, or 0 if none was recorded
+         * @throws IllegalArgumentException If <code>percentile</code> is out of range
+         */
+        public long percentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("LatencyHistogram::percentile: " + percentile +
+                        " is not between 0 and 100");
+            }
+
+            long counted = 0;
+            for (long c : counts) {
+                counted += c;
+            }
+            long rank = Math.max(1, (long) Math.ceil(counted * (percentile / 100)));
+
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), max);
+                }
+            }
+            return 0;
+        }
+    }
+}
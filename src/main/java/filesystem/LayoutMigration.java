@@ -0,0 +1,115 @@
+package filesystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Converts a disk image from layout version 1 to layout version 2.  The
+ * superblock, free block list, data blocks and journal are copied as they
+ * are; each inode moves from its <code>Disk.INODE_SIZE</code> slot to a
+ * <code>Disk.COMPACT_INODE_SIZE</code> slot, the slots packed back to
+ * back.  The new image is written next to the old one and then moved over
+ * it, so an interrupted migration leaves the old image as it was.  The
+ * disk must not be mounted.
+ *
+ * Usage: <code>java filesystem.LayoutMigration [disk file]</code>
+ */
+public class LayoutMigration {
+
+    public static void main(String[] args) throws IOException {
+        String diskFileName = args.length > 0 ? args[0] : Disk.RAW_DISK_NAME;
+
+        if (migrate(diskFileName)) {
+            System.out.println("Migrated " + diskFileName + " to layout version " + Disk.LAYOUT_VERSION_2);
+        } else {
+            System.out.println(diskFileName + " already has layout version " + Disk.LAYOUT_VERSION_2);
+        }
+    }
+
+    /**
+     * Converts a disk image to layout version 2 in place
+     *
+     * @param diskFileName - raw disk file
+     * @return true if the image was converted, false if it already had layout version 2
+     * @throws IOException If the file is not a formatted disk or cannot be converted
+     */
+    public static boolean migrate(String diskFileName) throws IOException {
+        Path source = Paths.get(diskFileName);
+        Path target = Paths.get(diskFileName + ".v2");
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate((int) Disk.INODE_LIST_OFFSET);
+            readFully(in, head, 0);
+
+            if (head.getInt((int) Disk.SUPERBLOCK_OFFSET) != Disk.SUPERBLOCK_MAGIC) {
+                throw new IOException("LayoutMigration::migrate: " + diskFileName + " is not a formatted disk");
+            }
+            int version = head.getInt((int) Disk.SUPERBLOCK_OFFSET + 4);
+            if (version == Disk.LAYOUT_VERSION_2) {
+                return false;
+            }
+            if (version != Disk.LAYOUT_VERSION_1) {
+                throw new IOException("LayoutMigration::migrate: " + diskFileName +
+                        " has unknown layout version " + version);
+            }
+            if (in.size() < Disk.diskSize(Disk.LAYOUT_VERSION_1)) {
+                throw new IOException("LayoutMigration::migrate: " + diskFileName + " is " + in.size() +
+                        " bytes long instead of " + Disk.diskSize(Disk.LAYOUT_VERSION_1));
+            }
+
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // Superblock and free block list, with the new layout version
+                head.putInt((int) Disk.SUPERBLOCK_OFFSET + 4, Disk.LAYOUT_VERSION_2);
+                head.clear();
+                writeFully(out, head, 0);
+
+                // Inodes, each moved to its compact slot
+                ByteBuffer oldInodes = ByteBuffer.allocate(Disk.INODE_SIZE * Disk.NUM_INODES);
+                readFully(in, oldInodes, Disk.INODE_LIST_OFFSET);
+                ByteBuffer newInodes = ByteBuffer.allocate(Disk.COMPACT_INODE_SIZE * Disk.NUM_INODES);
+                for (int i = 0; i < Disk.NUM_INODES; i++) {
+                    newInodes.put(i * Disk.COMPACT_INODE_SIZE, oldInodes, i * Disk.INODE_SIZE, INode.ENCODED_SIZE);
+                }
+                writeFully(out, newInodes, Disk.INODE_LIST_OFFSET);
+
+                // Data blocks and journal, which keep their contents and order
+                long from = Disk.dataBlocksOffset(Disk.LAYOUT_VERSION_1);
+                long length = Disk.diskSize(Disk.LAYOUT_VERSION_1) - from;
+                out.position(Disk.dataBlocksOffset(Disk.LAYOUT_VERSION_2));
+                for (long copied = 0; copied < length; ) {
+                    copied += in.transferTo(from + copied, length - copied, out);
+                }
+
+                out.force(true);
+            }
+        }
+
+        Files.move(target, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int readLen = channel.read(dst, position);
+            if (readLen < 0) {
+                throw new EOFException("LayoutMigration::readFully: end of disk at byte " + position);
+            }
+            position += readLen;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A <code>Disk</code> that maps the raw disk file into memory once and
+ * serves the free block list, inode and data block accesses directly from
+ * the mapping instead of issuing a seek and a read/write per access.
+ */
+public class MappedDisk extends Disk {
+  private MappedByteBuffer mappedDisk;
+
+  public MappedDisk() {
+    super();
+  }
+
+  /***
+   * Initialize a new disk and map it into memory
+   *
+   * @param inodeFormat How file blocks are recorded in inodes
+   * @param features Feature flags
+   * @param layoutVersion Layout version
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public void format(int inodeFormat, int features, int layoutVersion) throws IOException {
+    super.format(inodeFormat, features, layoutVersion);
+    mappedDisk = rawDisk.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, diskSize(layoutVersion));
+  }
+
+  /***
+   * Open an existing disk and map it into memory
+   *
+   * @throws IOException If the disk cannot be mounted
+   */
+  @Override
+  public void mount() throws IOException {
+    super.mount();
+    mappedDisk = rawDisk.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, diskSize(layoutVersion));
+  }
+
+  /***
+   * Flushes and releases the raw disk.  The mapping stays valid until it
+   * is garbage collected, so it is dropped here.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    mappedDisk = null;
+  }
+
+  /***
+   * Retrieve the free block list
+   *
+   * @return Returns an array of bytes representing the free block list
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public byte[] readFreeBlockList() throws IOException {
+    byte[] freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
+
+    mapping().get((int)FREE_LIST_OFFSET, freeList);
+
+    return freeList;
+  }
+
+  /***
+   * Writes free space list to the mapped disk
+   *
+   * @param freeBlockList Array of bytes representing an updated free
+   *                      byte list
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+    if (freeBlockList.length != BYTES_IN_FREE_SPACE_LIST) {
+      throw new IllegalArgumentException("MappedDisk::writeFreeBlockList:  " +
+                                       "is "  +  freeBlockList.length +
+                                       "bytes long  instead of "  +
+                                       BYTES_IN_FREE_SPACE_LIST +
+                                       " bytes long");
+    }
+
+    mapping().put((int)FREE_LIST_OFFSET, freeBlockList);
+  }
+
+  /***
+   * Write an <code>INode</code> instance to the appropriate position
+   *
+   * @param inode The Inode to be written to disk
+   * @param whichInode  The position to which the inode is to be written
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void writeInode(INode inode, int whichInode) throws IOException {
+    inode.writeTo(mapping().slice((int)inodeOffset(whichInode), INODE_FIELDS_SIZE));
+  }
+
+  /***
+   * Read an <code>INode</code> instance from the appropriate position in the mapping
+   *
+   * @param whichInode The <code>INode</code> position in the file system to be read
+   * @return An instance of INode read from the disk.
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public INode readInode(int whichInode) throws IOException {
+    return INode.readFrom(mapping().slice((int)inodeOffset(whichInode), INODE_FIELDS_SIZE));
+  }
+
+  /***
+   * Decodes the whole inode list straight from the mapping
+   *
+   * @return A table holding every inode
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public INodeTable readINodeTable() throws IOException {
+    int slotSize = inodeSlotSize(layoutVersion);
+    return decodeINodeTable(mapping().slice((int)INODE_LIST_OFFSET, slotSize * NUM_INODES), slotSize);
+  }
+
+  /***
+   * Reads a block of data from the mapping
+   *
+   * @param whichBlock The position of the data block to be read
+   * @return A block of data at position <code>whichBlock</code>
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public byte[] readDataBlock(int whichBlock) throws IOException {
+    byte[] blockData = new byte[BLOCK_SIZE];
+
+    mapping().get((int)dataBlockOffset(whichBlock), blockData);
+
+    return blockData;
+  }
+
+  /***
+   * Writes a block of data to the mapping
+   *
+   * @param blockData Array of bytes to be written to <code>whichBlock</code>
+   * @param whichBlock Block position in the file system
+   * @throws IOException If the disk has not been mapped
+   * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+   *                                  to the length of a data block size
+   */
+  @Override
+  public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    if (blockData.length != BLOCK_SIZE) {
+       throw new IllegalArgumentException("MappedDisk::writeDataBlock:  "  +
+                     "storing block of size " + blockData.length  +
+                     "when it should be of size "  + BLOCK_SIZE);
+    }
+
+    mapping().put((int)dataBlockOffset(whichBlock), blockData);
+  }
+
+  /***
+   * Reads the data blocks listed in <code>blocks</code>, in order, into
+   * <code>dst</code>, copying each run of consecutive blocks in one step
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void readDataBlocks(int[] blocks, ByteBuffer dst) throws IOException {
+    MappedByteBuffer disk = mapping();
+    int i = 0;
+
+    while (i < blocks.length && dst.hasRemaining()) {
+      int runLength = runLength(blocks, i);
+      int runBytes = Math.min(runLength * BLOCK_SIZE, dst.remaining());
+
+      dst.put(disk.slice((int)dataBlockOffset(blocks[i]), runBytes));
+      i += runLength;
+    }
+  }
+
+  /***
+   * Writes the contents of <code>src</code> to the data blocks listed in
+   * <code>blocks</code>, in order, copying each run of consecutive blocks in
+   * one step
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @throws IOException If the disk has not been mapped
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  @Override
+  public void writeDataBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    if (src.remaining() > (long)blocks.length * BLOCK_SIZE) {
+      throw new IllegalArgumentException("MappedDisk::writeDataBlocks:  " +
+                    "storing " + src.remaining() + " bytes in " +
+                    blocks.length + " blocks of size " + BLOCK_SIZE);
+    }
+
+    MappedByteBuffer disk = mapping();
+    int i = 0;
+
+    while (i < blocks.length && src.hasRemaining()) {
+      int runLength = runLength(blocks, i);
+      int runBytes = Math.min(runLength * BLOCK_SIZE, src.remaining());
+
+      disk.put((int)dataBlockOffset(blocks[i]), src, src.position(), runBytes);
+
+      src.position(src.position() + runBytes);
+      i += runLength;
+    }
+  }
+
+  /***
+   * Reads data blocks like <code>readDataBlocks</code>.  The blocks are
+   * copied through the mapping on the calling thread; there is no
+   * device wait to overlap.
+   *
+   * @param blocks The positions of the data blocks to be read
+   * @param dst Buffer receiving the block contents
+   * @return A completed future, failed if the blocks could not be read
+   */
+  @Override
+  public CompletableFuture<Void> readDataBlocksAsync(int[] blocks, ByteBuffer dst) {
+    try {
+      readDataBlocks(blocks, dst);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /***
+   * Writes data blocks like <code>writeDataBlocks</code>.  The blocks are
+   * copied through the mapping on the calling thread; there is no
+   * device wait to overlap.
+   *
+   * @param blocks The positions of the data blocks to be written
+   * @param src Buffer holding the data to be written
+   * @return A completed future, failed if the blocks could not be written
+   * @throws IllegalArgumentException If <code>src</code> holds more data than
+   *                                  the blocks can store
+   */
+  @Override
+  public CompletableFuture<Void> writeDataBlocksAsync(int[] blocks, ByteBuffer src) throws IllegalArgumentException {
+    try {
+      writeDataBlocks(blocks, src);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /***
+   * Reads from the journal region of the mapping
+   *
+   * @param dst Buffer to fill
+   * @param position Byte offset within the journal region
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void readJournal(ByteBuffer dst, long position) throws IOException {
+    checkJournalRange("MappedDisk::readJournal", position, dst.remaining());
+    dst.put(mapping().slice((int)(journalOffset(layoutVersion) + position), dst.remaining()));
+  }
+
+  /***
+   * Writes to the journal region of the mapping
+   *
+   * @param src Buffer to write
+   * @param position Byte offset within the journal region
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void writeJournal(ByteBuffer src, long position) throws IOException {
+    checkJournalRange("MappedDisk::writeJournal", position, src.remaining());
+    mapping().put((int)(journalOffset(layoutVersion) + position), src, src.position(), src.remaining());
+    src.position(src.limit());
+  }
+
+  /***
+   * Waits until every change made through the mapping is on stable storage
+   *
+   * @throws IOException If the disk has not been mapped
+   */
+  @Override
+  public void force() throws IOException {
+    mapping().force();
+  }
+
+  private MappedByteBuffer mapping() throws IOException {
+    if (mappedDisk == null) {
+      throw new IOException("MappedDisk: disk has not been formatted and mapped");
+    }
+    return mappedDisk;
+  }
+}
@@ -0,0 +1,195 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Records the count, bytes and latency of every completed access to another
+ * <code>Disk</code> in a <code>Metrics</code>.  Wrapped around a
+ * <code>CachedDisk</code> it measures what the file system asks for;
+ * wrapped by one, it measures the accesses that miss the cache.  A file
+ * system on a metered disk records its own operations in the same metrics.
+ */
+public class MeteredDisk extends Disk {
+  private final Disk disk;
+  private final Metrics metrics;
+
+  public MeteredDisk(Disk disk) {
+    this(disk, new Metrics());
+  }
+
+  /**
+   * @param disk The disk being measured
+   * @param metrics Where accesses are recorded
+   */
+  public MeteredDisk(Disk disk, Metrics metrics) {
+    this.disk = disk;
+    this.metrics = metrics;
+  }
+
+  /***
+   * Returns the metrics accesses are recorded in
+   *
+   * @return The metrics
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public void format(int inodeFormat, int features, int layoutVersion) throws IOException {
+    disk.format(inodeFormat, features, layoutVersion);
+  }
+
+  @Override
+  public void mount() throws IOException {
+    disk.mount();
+  }
+
+  @Override
+  public int getLayoutVersion() {
+    return disk.getLayoutVersion();
+  }
+
+  @Override
+  public int getInodeFormat() {
+    return disk.getInodeFormat();
+  }
+
+  @Override
+  public int getFeatures() {
+    return disk.getFeatures();
+  }
+
+  @Override
+  public byte[] readFreeBlockList() throws IOException {
+    long start = System.nanoTime();
+    byte[] freeBlockList = disk.readFreeBlockList();
+    metrics.record(Metrics.Metric.FREE_LIST_READ, start, freeBlockList.length);
+    return freeBlockList;
+  }
+
+  @Override
+  public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+    long start = System.nanoTime();
+    disk.writeFreeBlockList(freeBlockList);
+    metrics.record(Metrics.Metric.FREE_LIST_WRITE, start, freeBlockList.length);
+  }
+
+  @Override
+  public void writeInode(INode inode, int whichInode) throws IOException {
+    long start = System.nanoTime();
+    disk.writeInode(inode, whichInode);
+    metrics.record(Metrics.Metric.INODE_WRITE, start, INode.ENCODED_SIZE);
+  }
+
+  @Override
+  public INode readInode(int whichInode) throws IOException {
+    long start = System.nanoTime();
+    INode inode = disk.readInode(whichInode);
+    metrics.record(Metrics.Metric.INODE_READ, start, INode.ENCODED_SIZE);
+    return inode;
+  }
+
+  /***
+   * Reads the whole inode list, recorded as one inode read
+   *
+   * @return A table holding every inode
+   * @throws IOException If the inode list cannot be read
+   */
+  @Override
+  public INodeTable readINodeTable() throws IOException {
+    long start = System.nanoTime();
+    INodeTable table = disk.readINodeTable();
+    metrics.record(Metrics.Metric.INODE_READ, start, (long)inodeSlotSize(disk.getLayoutVersion()) * NUM_INODES);
+    return table;
+  }
+
+  @Override
+  public byte[] readDataBlock(int whichBlock) throws IOException {
+    long start = System.nanoTime();
+    byte[] blockData = disk.readDataBlock(whichBlock);
+    metrics.record(Metrics.Metric.BLOCK_READ, start, BLOCK_SIZE);
+    return blockData;
+  }
+
+  @Override
+  public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    disk.writeDataBlock(blockData, whichBlock);
+    metrics.record(Metrics.Metric.BLOCK_WRITE, start, blockData.length);
+  }
+
+  @Override
+  public void readDataBlocks(int[] blocks, ByteBuffer dst) throws IOException {
+    long start = System.nanoTime();
+    int before = dst.position();
+    disk.readDataBlocks(blocks, dst);
+    metrics.record(Metrics.Metric.BLOCK_READ, start, dst.position() - before);
+  }
+
+  @Override
+  public void writeDataBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    int length = src.remaining();
+    disk.writeDataBlocks(blocks, src);
+    metrics.record(Metrics.Metric.BLOCK_WRITE, start, length);
+  }
+
+  /***
+   * Reads data blocks asynchronously, recording the time until the read completes
+   */
+  @Override
+  public CompletableFuture<Void> readDataBlocksAsync(int[] blocks, ByteBuffer dst) throws IOException {
+    long start = System.nanoTime();
+    long length = Math.min(dst.remaining(), (long)blocks.length * BLOCK_SIZE);
+    return disk.readDataBlocksAsync(blocks, dst)
+        .whenComplete((ignored, e) -> metrics.record(Metrics.Metric.BLOCK_READ, start, e == null ? length : 0));
+  }
+
+  /***
+   * Writes data blocks asynchronously, recording the time until the write completes
+   */
+  @Override
+  public CompletableFuture<Void> writeDataBlocksAsync(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    int length = src.remaining();
+    return disk.writeDataBlocksAsync(blocks, src)
+        .whenComplete((ignored, e) -> metrics.record(Metrics.Metric.BLOCK_WRITE, start, e == null ? length : 0));
+  }
+
+  @Override
+  public void readJournal(ByteBuffer dst, long position) throws IOException {
+    long start = System.nanoTime();
+    int length = dst.remaining();
+    disk.readJournal(dst, position);
+    metrics.record(Metrics.Metric.JOURNAL_READ, start, length);
+  }
+
+  @Override
+  public void writeJournal(ByteBuffer src, long position) throws IOException {
+    long start = System.nanoTime();
+    int length = src.remaining();
+    disk.writeJournal(src, position);
+    metrics.record(Metrics.Metric.JOURNAL_WRITE, start, length);
+  }
+
+  @Override
+  public void force() throws IOException {
+    long start = System.nanoTime();
+    disk.force();
+    metrics.record(Metrics.Metric.FORCE, start, 0);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    disk.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    disk.close();
+  }
+}
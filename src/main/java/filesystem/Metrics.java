@@ -0,0 +1,177 @@
+package filesystem;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and latency histograms for file system operations and disk
+ * I/O.  Every <code>FileSystem</code> records its operations here; disk
+ * I/O is recorded when the disk is wrapped in a <code>MeteredDisk</code>,
+ * whose metrics the file system then shares.
+ *
+ * Recording costs two <code>System.nanoTime()</code> calls and a few
+ * atomic additions, with no locking or allocation, so metrics are always on.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * What is measured: the file system operations, then the disk accesses
+     */
+    public enum Metric {
+        CREATE, OPEN, READ, WRITE, DELETE, CLOSE,
+        BLOCK_READ, BLOCK_WRITE, INODE_READ, INODE_WRITE,
+        FREE_LIST_READ, FREE_LIST_WRITE, JOURNAL_READ, JOURNAL_WRITE, FORCE
+    }
+
+    private final LatencyHistogram[] latencies;
+    private final LongAdder[] bytes;
+
+    public Metrics() {
+        int n = Metric.values().length;
+        latencies = new LatencyHistogram[n];
+        bytes = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            latencies[i] = new LatencyHistogram();
+            bytes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one operation that started at <code>startNanos</code> and
+     * ends now
+     *
+     * @param metric - the operation
+     * @param startNanos - <code>System.nanoTime()</code> when it started
+     * @param numBytes - bytes it transferred, or 0
+     */
+    public void record(Metric metric, long startNanos, long numBytes) {
+        latencies[metric.ordinal()].record(System.nanoTime() - startNanos);
+        if (numBytes > 0) {
+            bytes[metric.ordinal()].add(numBytes);
+        }
+    }
+
+    /**
+     * Returns the statistics of one operation
+     *
+     * @param metric - the operation
+     * @return Its counts so far
+     */
+    public Stats get(Metric metric) {
+        return new Stats(metric, bytes[metric.ordinal()].sum(), latencies[metric.ordinal()].snapshot());
+    }
+
+    /**
+     * Returns the statistics of every operation
+     *
+     * @return Counts so far, by operation
+     */
+    public Map<Metric, Stats> snapshot() {
+        Map<Metric, Stats> stats = new EnumMap<>(Metric.class);
+        for (Metric metric : Metric.values()) {
+            stats.put(metric, get(metric));
+        }
+        return stats;
+    }
+
+    @Override
+    public List<Stats> getStats() {
+        return new ArrayList<>(snapshot().values());
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i].reset();
+            bytes[i].reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * <code>filesystem:type=Metrics,name=&lt;name&gt;</code>
+     *
+     * @param name - distinguishes file systems in the same JVM
+     * @return The name the MBean was registered under
+     * @throws JMException If the name is taken or cannot be registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("filesystem:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * The statistics of one operation at one point in time
+     */
+    public static final class Stats {
+        private final Metric metric;
+        private final long bytes;
+        private final LatencyHistogram.Snapshot latency;
+
+        Stats(Metric metric, long bytes, LatencyHistogram.Snapshot latency) {
+            this.metric = metric;
+            this.bytes = bytes;
+            this.latency = latency;
+        }
+
+        public String getName() {
+            return metric.name();
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTotalNanos() {
+            return latency.getTotalNanos();
+        }
+
+        public long getMeanNanos() {
+            return latency.getMeanNanos();
+        }
+
+        public long getP50Nanos() {
+            return latency.percentile(50);
+        }
+
+        public long getP99Nanos() {
+            return latency.percentile(99);
+        }
+
+        public long getP999Nanos() {
+            return latency.percentile(99.9);
+        }
+
+        public long getMaxNanos() {
+            return latency.getMaxNanos();
+        }
+
+        /**
+         * Returns any percentile of the operation's latency
+         *
+         * @param percentile - between 0 and 100
+         * @return The latency in nanoseconds
+         */
+        public long percentile(double percentile) {
+            return latency.percentile(percentile);
+        }
+
+        @Override
+        public String toString() {
+            return metric + ": count=" + getCount() + " bytes=" + bytes + " mean=" + getMeanNanos() +
+                    "ns p50=" + getP50Nanos() + "ns p99=" + getP99Nanos() + "ns max=" + getMaxNanos() + "ns";
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package filesystem;
+
+import java.util.List;
+
+
+/**
+ * Management interface of <code>Metrics</code>, registered with
+ * <code>Metrics.registerMBean</code>.  Each entry of <code>getStats()</code>
+ * appears in JMX clients as a composite of its getters.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the statistics of every operation, in the order of
+     * <code>Metrics.Metric</code>
+     *
+     * @return One entry per operation
+     */
+    List<Metrics.Stats> getStats();
+
+    /**
+     * Clears every counter and histogram
+     */
+    void reset();
+}
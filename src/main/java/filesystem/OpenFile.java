@@ -0,0 +1,63 @@
+package filesystem;
+
+
+/**
+ * An entry in the file system's open file table: the inode of an open
+ * file held in memory, the descriptor's read position, and whether the
+ * inode has changes that have not been written to disk yet.
+ */
+class OpenFile {
+    private final int iNodeNumber;
+    private final INode inode;
+    private long position;
+    private boolean dirty;
+    private int openCount;
+
+    OpenFile(int iNodeNumber, INode inode, boolean dirty) {
+        this.iNodeNumber = iNodeNumber;
+        this.inode = inode;
+        this.position = 0;
+        this.dirty = dirty;
+        this.openCount = 1;
+    }
+
+    int getINodeNumber() {
+        return iNodeNumber;
+    }
+
+    INode getINode() {
+        return inode;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    void setPosition(long position) {
+        this.position = position;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    /**
+     * Records another <code>open</code> of the same file
+     */
+    void retain() {
+        openCount++;
+    }
+
+    /**
+     * Records a <code>close</code> of the file
+     *
+     * @return true if this was the last open reference
+     */
+    boolean release() {
+        return --openCount == 0;
+    }
+}
@@ -0,0 +1,121 @@
+package filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/**
+ * Level-gated trace of file system events: block allocation and
+ * deallocation, and data and inode I/O.  Tracing is off by default.  An
+ * event's message is built only when its level is enabled and the event is
+ * sampled, so a disabled trace costs one volatile read per event.  Call
+ * sites that trace once per block check <code>isEnabled</code> first so the
+ * whole loop is skipped.
+ *
+ * The starting level is read from the <code>filesystem.trace</code> system
+ * property, e.g. <code>-Dfilesystem.trace=DEBUG</code>.
+ */
+public class Trace {
+
+    /**
+     * How much is traced, from nothing to every block
+     */
+    public enum Level {
+        OFF, WARN, INFO, DEBUG
+    }
+
+    /**
+     * What happened
+     */
+    public enum Event {
+        ALLOCATE, ALLOCATE_FAILED, DEALLOCATE, ALREADY_FREE, DATA_READ, DATA_WRITE, INODE_WRITE
+    }
+
+    /**
+     * Receives the events that are traced.  A sink may be called by many
+     * threads at once.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(Level level, Event event, String message);
+    }
+
+    /**
+     * Prints each event on standard error
+     */
+    public static final Sink STDERR = (level, event, message) ->
+            System.err.println("[" + level + "] " + event + ": " + message);
+
+    private volatile Level level;
+    private volatile Sink sink = STDERR;
+    private volatile int sampleEvery = 1;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public Trace() {
+        this(Level.valueOf(System.getProperty("filesystem.trace", Level.OFF.name())));
+    }
+
+    /**
+     * @param level - events up to this level are traced
+     */
+    public Trace(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Sends the events that are traced to <code>sink</code> instead of
+     * standard error
+     *
+     * @param sink - receives the events
+     */
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Traces only one in every <code>sampleEvery</code> enabled events
+     *
+     * @param sampleEvery - 1 to trace every enabled event
+     * @throws IllegalArgumentException If <code>sampleEvery</code> is less than 1
+     */
+    public void setSampling(int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Trace::setSampling: " + sampleEvery + " is less than 1");
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * @param level - level of an event
+     * @return true if events at <code>level</code> are traced
+     */
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) <= 0;
+    }
+
+    /**
+     * Traces an event if its level is enabled and it is sampled
+     *
+     * @param level - level of the event
+     * @param event - what happened
+     * @param message - builds the message; not called if the event is not traced
+     */
+    public void log(Level level, Event event, Supplier<String> message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        int every = sampleEvery;
+        if (every > 1 && sequence.getAndIncrement() % every != 0) {
+            return;
+        }
+        sink.accept(level, event, message.get());
+    }
+}